@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the execution modes of J10 on the programs using GOSUB, which J5 does not support. Run like
+ * {@link InterpreterBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class GosubBenchmark {
+	@Param({"J10", "J10_BYTECODE", "J10_JIT"})
+	Interpreter interpreter;
+
+	@Param({"PROGRAM_BASIC", "GOSUB_HEAVY"})
+	Program program;
+
+	private Interpreter.Calculator calculator;
+	private int start;
+
+	@Setup
+	public void setup() {
+		calculator = interpreter.load(program, new Interpreter.Console(program.input()));
+		start = program.start();
+	}
+
+	/**
+	 * Load and parse the program
+	 */
+	@Benchmark
+	public Object parse() {
+		return interpreter.load(program, new Interpreter.Console(program.input()));
+	}
+
+	/**
+	 * Run the already parsed program
+	 */
+	@Benchmark
+	public long run() {
+		return calculator.run(start);
+	}
+}
@@ -0,0 +1,199 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One of the BASIC interpreters of the project. Every module declares its calculator in the default
+ * package under the same names, so each one is loaded by its own class loader from the compiled classes
+ * of the module, {@code out/production/<module>} by default or the directory given by the
+ * {@code bench.<module>} system property, for example {@code -Dbench.J10=J10/out}.
+ */
+public enum Interpreter {
+	/**
+	 * The {@code TreeMap<Integer, Instruction>} interpreter, without GOSUB
+	 */
+	J5("J5", null, false),
+	/**
+	 * The array-indexed interpreter, running the parsed instructions
+	 */
+	J10("J10", null, true),
+	J10_BYTECODE("J10", "BYTECODE", true),
+	J10_JIT("J10", "JIT", true);
+
+	private static final Map<String, ClassLoader> loaders = new ConcurrentHashMap<>();
+
+	private final String module;
+	/**
+	 * The {@code ExecutionMode} to run with, or null for the default one
+	 */
+	private final String mode;
+	final boolean gosub;
+
+	Interpreter(String module, String mode, boolean gosub) {
+		this.module = module;
+		this.mode = mode;
+		this.gosub = gosub;
+	}
+
+	/**
+	 * Create a calculator and load the given program into it, waiting until it is parsed
+	 *
+	 * @throws UnsupportedOperationException If the program uses GOSUB and the interpreter does not support it
+	 */
+	Calculator load(Program program, Console console) {
+		if (program.gosub && !gosub) {
+			throw new UnsupportedOperationException(name() + " does not support GOSUB, used by " + program);
+		}
+
+		try {
+			var loader = loader(module);
+			var iface = loader.loadClass("ProgrammableCalculatorInterface");
+			var reader = loader.loadClass("ProgrammableCalculatorInterface$LineReader");
+			var printer = loader.loadClass("ProgrammableCalculatorInterface$LinePrinter");
+			var type = loader.loadClass("ProgrammableCalculator");
+			var instance = type.getConstructor().newInstance();
+
+			if (mode != null) {
+				var modes = loader.loadClass("ExecutionMode");
+
+				for (var constant : modes.getEnumConstants()) {
+					if (((Enum<?>) constant).name().equals(mode)) {
+						type.getMethod("setExecutionMode", modes).invoke(instance, constant);
+					}
+				}
+			}
+
+			iface.getMethod("setStdin", reader).invoke(instance, console.proxy(loader, reader));
+			iface.getMethod("setStdout", printer).invoke(instance, console.proxy(loader, printer));
+			iface.getMethod("programCodeReader", BufferedReader.class)
+					.invoke(instance, new BufferedReader(new StringReader(program.source())));
+
+			// J10 parses in the background
+			for (var method : type.getMethods()) {
+				if (method.getName().equals("awaitParsed") && method.getParameterCount() == 0) {
+					method.invoke(instance);
+				}
+			}
+
+			return new Calculator(instance, iface.getMethod("run", int.class), console);
+		} catch (InvocationTargetException e) {
+			throw rethrow(e);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Can not load the " + module + " calculator", e);
+		}
+	}
+
+	static ClassLoader loader(String module) {
+		return loaders.computeIfAbsent(module, m -> {
+			var dir = Path.of(System.getProperty("bench." + m, "out/production/" + m));
+
+			if (!Files.isDirectory(dir)) {
+				throw new IllegalStateException(
+						"No compiled classes of " + m + " in " + dir.toAbsolutePath() + ", build the module or set -Dbench." + m);
+			}
+
+			try {
+				// Not the application class loader, so that the classes of another module can never be found
+				return new URLClassLoader(new URL[]{dir.toUri().toURL()}, ClassLoader.getPlatformClassLoader());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private static RuntimeException rethrow(InvocationTargetException e) {
+		if (e.getCause() instanceof RuntimeException cause) {
+			return cause;
+		} else if (e.getCause() instanceof Error cause) {
+			throw cause;
+		}
+
+		return new IllegalStateException(e.getCause());
+	}
+
+	/**
+	 * A loaded calculator
+	 */
+	static final class Calculator {
+		private final Object instance;
+		private final Method run;
+		private final Console console;
+
+		private Calculator(Object instance, Method run, Console console) {
+			this.instance = instance;
+			this.run = run;
+			this.console = console;
+		}
+
+		/**
+		 * Run the program from the given line, with the input rewound to its first line
+		 *
+		 * @return The {@link Console#checksum()} of the output of all runs so far
+		 */
+		long run(int line) {
+			console.rewind();
+
+			try {
+				run.invoke(instance, line);
+			} catch (InvocationTargetException e) {
+				throw rethrow(e);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+
+			return console.checksum();
+		}
+	}
+
+	/**
+	 * The standard input and output of a calculator. The output is only summed up, so that printing costs the
+	 * same for every interpreter and can not be optimised away.
+	 */
+	static final class Console implements InvocationHandler {
+		private final List<String> input;
+		private int position = 0;
+		private long checksum = 0;
+
+		Console(List<String> input) {
+			this.input = input;
+		}
+
+		Object proxy(ClassLoader loader, Class<?> type) {
+			return Proxy.newProxyInstance(loader, new Class<?>[]{type}, this);
+		}
+
+		void rewind() {
+			position = 0;
+		}
+
+		long checksum() {
+			return checksum;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			return switch (method.getName()) {
+				case "readLine" -> position < input.size() ? input.get(position++) : null;
+				case "printLine" -> {
+					checksum = checksum * 31 + args[0].hashCode();
+					yield null;
+				}
+				default -> method.invoke(this, args);
+			};
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the interpreters on the programs all of them support. The modules benchmarked have to be built
+ * first, see {@link Interpreter}. Run from the project directory, with the JMH jars of {@code Bench.iml} on
+ * the class path and its annotation processor enabled:
+ * <pre>
+ * javac -cp "$JMH" -d Bench/out Bench/src/bench/*.java
+ * java -cp "$JMH:Bench/out" org.openjdk.jmh.Main InterpreterBenchmark -p interpreter=J5,J10
+ * </pre>
+ *
+ * @see GosubBenchmark
+ * @see ParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class InterpreterBenchmark {
+	@Param
+	Interpreter interpreter;
+
+	@Param({"TIGHT_LOOP", "SPARSE", "PRINT_HEAVY", "LARGE"})
+	Program program;
+
+	private Interpreter.Calculator calculator;
+	private int start;
+
+	@Setup
+	public void setup() {
+		calculator = interpreter.load(program, new Interpreter.Console(program.input()));
+		start = program.start();
+	}
+
+	/**
+	 * Load and parse the program
+	 */
+	@Benchmark
+	public Object parse() {
+		return interpreter.load(program, new Interpreter.Console(program.input()));
+	}
+
+	/**
+	 * Run the already parsed program
+	 */
+	@Benchmark
+	public long run() {
+		return calculator.run(start);
+	}
+}
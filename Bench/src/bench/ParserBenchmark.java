@@ -0,0 +1,94 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two parsers of J10 on the same 10 000 lines, with every instruction: the hand-written
+ * {@code BasicParser} used to load programs and the regex parser of {@code Instruction.parse} it replaced.
+ * Every operation parses all lines into a new symbol table, as a load does, so the score is the parse time
+ * per 10 000 lines. Run like {@link InterpreterBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ParserBenchmark {
+	private static final int LINES = 10_000;
+
+	/**
+	 * The class whose static {@code parse(line, lineMappings, symbols)} method is benchmarked
+	 */
+	@Param({"BasicParser", "Instruction"})
+	String parser;
+
+	/**
+	 * {@code (String, NavigableMap, SymbolTable) -> Instruction}, with the J10 types erased to Object
+	 */
+	private MethodHandle parse;
+	/**
+	 * {@code () -> SymbolTable}
+	 */
+	private MethodHandle symbolTable;
+	private final String[] lines = new String[LINES];
+	private final NavigableMap<Integer, Integer> lineMappings = new TreeMap<>();
+
+	@Setup
+	public void setup() throws ReflectiveOperationException {
+		var loader = Interpreter.loader("J10");
+		var symbols = loader.loadClass("SymbolTable");
+		// BasicParser takes any CharSequence, the regex parser a String
+		var source = parser.equals("BasicParser") ? CharSequence.class : String.class;
+		var method = loader.loadClass(parser).getDeclaredMethod("parse", source, NavigableMap.class, symbols);
+		var constructor = symbols.getDeclaredConstructor();
+		method.setAccessible(true);
+		constructor.setAccessible(true);
+
+		var lookup = MethodHandles.lookup();
+		parse = lookup.unreflect(method)
+				.asType(MethodType.methodType(Object.class, String.class, NavigableMap.class, Object.class));
+		symbolTable = lookup.unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+
+		for (int i = 0; i < LINES; i++) {
+			lineMappings.put((i + 1) * 10, i);
+		}
+
+		for (int i = 0; i < LINES; i++) {
+			var destination = (i * 7919 % LINES + 1) * 10;
+
+			lines[i] = switch (i % 10) {
+				case 0 -> "LET a" + (char) ('a' + i % 26) + " = " + i;
+				case 1 -> "LET b = a * 3";
+				case 2 -> "LET c = b - -12";
+				case 3 -> "PRINT \"Hello, World!\"";
+				case 4 -> "PRINT c / 7";
+				case 5 -> "IF b < 100 GOTO " + destination;
+				case 6 -> "IF a = c GOTO " + destination;
+				case 7 -> "INPUT a";
+				case 8 -> "GOSUB " + destination;
+				default -> i % 20 == 9 ? "RETURN" : "GOTO " + destination;
+			};
+		}
+	}
+
+	/**
+	 * Parse every line into a new symbol table
+	 */
+	@Benchmark
+	public void parse(Blackhole blackhole) throws Throwable {
+		var symbols = (Object) symbolTable.invokeExact();
+
+		for (var line : lines) {
+			blackhole.consume((Object) parse.invokeExact(line, lineMappings, symbols));
+		}
+	}
+}
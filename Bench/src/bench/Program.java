@@ -0,0 +1,164 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The programs benchmarked. All but {@link #PROGRAM_BASIC} are generated, and print or read as little as
+ * their name allows.
+ */
+public enum Program {
+	/**
+	 * {@code program.basic} with {@code program.stdin} as its input, both read from the {@code J10} directory
+	 * or the one given by the {@code bench.programs} system property
+	 */
+	PROGRAM_BASIC(true) {
+		@Override
+		String generate() {
+			return read("program.basic");
+		}
+
+		@Override
+		List<String> input() {
+			return read("program.stdin").lines().toList();
+		}
+	},
+	/**
+	 * A counter incremented one million times
+	 */
+	TIGHT_LOOP(false) {
+		@Override
+		String generate() {
+			return """
+					10 LET i = 0
+					20 LET i = i + 1
+					30 IF i < 1000000 GOTO 20
+					40 END
+					""";
+		}
+	},
+	/**
+	 * A counter incremented 10 000 times, on lines numbered far apart
+	 */
+	SPARSE(false) {
+		@Override
+		String generate() {
+			return """
+					10 LET i = 0
+					100 LET i = i + 1
+					10000 IF i < 10000 GOTO 100
+					1000000 END
+					""";
+		}
+	},
+	/**
+	 * 100 000 calls of a subroutine calling another one
+	 */
+	GOSUB_HEAVY(true) {
+		@Override
+		String generate() {
+			return """
+					10 LET i = 0
+					20 GOSUB 100
+					30 LET i = i + 1
+					40 IF i < 100000 GOTO 20
+					50 END
+					100 LET x = i * 2
+					110 GOSUB 200
+					120 RETURN
+					200 LET y = x + 1
+					210 RETURN
+					""";
+		}
+	},
+	/**
+	 * 200 000 printed lines, half numbers and half strings
+	 */
+	PRINT_HEAVY(false) {
+		@Override
+		String generate() {
+			return """
+					10 LET i = 0
+					20 PRINT i
+					30 PRINT "Hello!"
+					40 LET i = i + 1
+					50 IF i < 100000 GOTO 20
+					60 END
+					""";
+		}
+	},
+	/**
+	 * 50 000 lines without loops, mostly calculations and never taken jumps, with a PRINT every 100 lines
+	 */
+	LARGE(false) {
+		@Override
+		String generate() {
+			var lines = 50_000;
+			var res = new StringBuilder("10 LET a = 0\n20 LET b = 0\n");
+
+			for (int i = 3; i < lines; i++) {
+				res.append(i * 10).append(' ');
+
+				if (i % 100 == 0) {
+					res.append("PRINT b\n");
+					continue;
+				}
+
+				switch (i % 3) {
+					case 0 -> res.append("LET a = a + ").append(i % 97).append('\n');
+					case 1 -> res.append("LET b = a * 3\n");
+					default -> res.append("IF b < 0 GOTO ").append(Math.min(i + 2, lines) * 10).append('\n');
+				}
+			}
+
+			return res.append(lines * 10).append(" END\n").toString();
+		}
+	};
+
+	/**
+	 * Whether the program needs GOSUB and RETURN
+	 */
+	final boolean gosub;
+	private String source = null;
+
+	Program(boolean gosub) {
+		this.gosub = gosub;
+	}
+
+	abstract String generate();
+
+	/**
+	 * @return The lines read by INPUT, in order
+	 */
+	List<String> input() {
+		return List.of();
+	}
+
+	/**
+	 * @return The line the program starts in
+	 */
+	int start() {
+		return source().lines().findFirst().map(l -> Integer.parseInt(l.substring(0, l.indexOf(' ')))).orElseThrow();
+	}
+
+	synchronized String source() {
+		if (source == null) {
+			source = generate();
+		}
+
+		return source;
+	}
+
+	private static String read(String name) {
+		var path = Path.of(System.getProperty("bench.programs", "J10"), name);
+
+		try {
+			return Files.readString(path);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can not read " + path.toAbsolutePath(), e);
+		}
+	}
+}
@@ -0,0 +1,8 @@
+class ArithmeticOverflowError extends ArithmeticException {
+	final int line;
+
+	ArithmeticOverflowError(int line, String calculation) {
+		super("Integer overflow in line " + line + ": " + calculation);
+		this.line = line;
+	}
+}
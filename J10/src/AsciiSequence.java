@@ -0,0 +1,39 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A view of ASCII text in a byte buffer
+ */
+class AsciiSequence implements CharSequence {
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int length;
+
+	AsciiSequence(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) buffer.get(offset + index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new AsciiSequence(buffer, offset + start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		var bytes = new byte[length];
+		buffer.get(offset, bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+}
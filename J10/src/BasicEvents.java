@@ -0,0 +1,125 @@
+import jdk.jfr.*;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Java Flight Recorder events of the interpreter, all in the {@code BASIC} category and disabled by default.
+ * They are enabled like any other event, for example with
+ * {@code -XX:StartFlightRecording:+basic.Run#enabled=true,+basic.Gosub#enabled=true}.
+ * <br>
+ * Disabled events cost nothing in the interpreter loop: program loads, runs and INPUTs emit their events
+ * outside of it, and runs only track subroutines while {@link Gosub} is enabled when they start, using the
+ * {@link ExecutionMode#TREE_WALKER} like profiled runs. An INPUT only creates its event while
+ * {@link InputStall} is enabled.
+ */
+class BasicEvents {
+	static final EventType GOSUB = EventType.getEventType(Gosub.class);
+	static final EventType INPUT_STALL = EventType.getEventType(InputStall.class);
+
+	/**
+	 * The counters of {@link Statistics}, updated once for every program load and run
+	 */
+	static final LongAdder loads = new LongAdder();
+	static final LongAdder runs = new LongAdder();
+	static final LongAdder activeRuns = new LongAdder();
+	static final LongAdder instructions = new LongAdder();
+	static final LongAdder inputs = new LongAdder();
+
+	static {
+		FlightRecorder.addPeriodicEvent(Statistics.class, () -> {
+			var event = new Statistics();
+			event.loads = loads.sum();
+			event.runs = runs.sum();
+			event.activeRuns = activeRuns.sum();
+			event.instructions = instructions.sum();
+			event.inputs = inputs.sum();
+			event.commit();
+		});
+	}
+
+	@Name("basic.Load")
+	@Label("BASIC Program Load")
+	@Description("A program was loaded, lasts until every line is parsed")
+	@Category("BASIC")
+	@Enabled(false)
+	static class Load extends Event {
+		@Label("Lines")
+		int lines;
+
+		@Label("Syntax Errors")
+		int errors;
+
+		@Label("Optimised")
+		boolean optimized;
+	}
+
+	@Name("basic.Run")
+	@Label("BASIC Run")
+	@Description("A run of a program, from its start until it ends or fails")
+	@Category("BASIC")
+	@Enabled(false)
+	static class Run extends Event {
+		@Label("Start Line")
+		int line;
+
+		@Label("Execution Mode")
+		@Description("The mode the run actually used, the tree walker while GOSUBs are recorded")
+		String mode;
+
+		@Label("Instructions")
+		@Description("The number of lines executed")
+		long instructions;
+	}
+
+	@Name("basic.Gosub")
+	@Label("BASIC GOSUB")
+	@Description("A subroutine which took longer than the threshold, from the GOSUB until its RETURN")
+	@Category("BASIC")
+	@Enabled(false)
+	@Threshold("20 ms")
+	static class Gosub extends Event {
+		@Label("Line")
+		@Description("The line number of the subroutine")
+		int line;
+
+		@Label("Caller Line")
+		int caller;
+
+		@Label("Depth")
+		int depth;
+	}
+
+	@Name("basic.InputStall")
+	@Label("BASIC INPUT Stall")
+	@Description("An INPUT which waited longer than the threshold for a line of standard input")
+	@Category("BASIC")
+	@Enabled(false)
+	@Threshold("20 ms")
+	static class InputStall extends Event {
+	}
+
+	@Name("basic.Statistics")
+	@Label("BASIC Statistics")
+	@Description("The totals of all calculators in the process")
+	@Category("BASIC")
+	@Enabled(false)
+	@Period("1 s")
+	@StackTrace(false)
+	static class Statistics extends Event {
+		@Label("Programs Loaded")
+		long loads;
+
+		@Label("Runs")
+		long runs;
+
+		@Label("Active Runs")
+		long activeRuns;
+
+		@Label("Instructions")
+		@Description("The number of lines executed by finished runs")
+		long instructions;
+
+		@Label("Inputs")
+		long inputs;
+	}
+}
@@ -0,0 +1,431 @@
+import java.util.Locale;
+import java.util.NavigableMap;
+
+/**
+ * A hand-written, single pass parser for BASIC instructions producing the same trees as
+ * {@link Instruction#parse}, without any regular expressions or intermediate strings.
+ * <br>
+ * The parser only handles well-formed lines. Anything it does not accept is handed over to the regex
+ * parser, which is kept as the reference for error messages. Variables only get their slots once the whole
+ * line is accepted, so a rejected line does not register any.
+ */
+class BasicParser {
+	private final CharSequence line;
+	private final NavigableMap<Integer, Integer> lineMappings;
+	private final SymbolTable symbols;
+	private int pos;
+	private int end;
+
+	private BasicParser(CharSequence line, NavigableMap<Integer, Integer> lineMappings, SymbolTable symbols) {
+		this.line = line;
+		this.lineMappings = lineMappings;
+		this.symbols = symbols;
+		pos = 0;
+		end = line.length();
+	}
+
+	static Instruction parse(CharSequence line, NavigableMap<Integer, Integer> lineMappings, SymbolTable symbols) {
+		var parser = new BasicParser(line, lineMappings, symbols);
+		var res = parser.instruction();
+
+		if (res == null) {
+			return Instruction.parse(line.toString(), lineMappings, symbols);
+		}
+
+		return parser.resolve(res);
+	}
+
+	/**
+	 * Register the variables of an accepted instruction and specialise its calculations
+	 */
+	private Instruction resolve(Instruction instruction) {
+		switch (instruction) {
+			case Instruction.Let let -> {
+				let.slot = symbols.slot(let.name);
+				let.value = resolve(let.value);
+			}
+			case Instruction.Print print -> print.value = resolve(print.value);
+			case Instruction.If if_ -> {
+				if_.left = resolve(if_.left);
+				if_.right = resolve(if_.right);
+			}
+			case Instruction.Input input -> input.slot = symbols.slot(input.name);
+			default -> {
+			}
+		}
+
+		return instruction;
+	}
+
+	private Expression resolve(Expression expression) {
+		return switch (expression) {
+			case Expression.Variable variable -> {
+				variable.slot = symbols.slot(variable.name);
+				yield variable;
+			}
+			case Expression.Calculation calc -> Expression.Calculation.of(resolve(calc.left), calc.operand, resolve(calc.right));
+			default -> expression;
+		};
+	}
+
+	// Lexer
+
+	private static boolean isAlpha(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * @return The end of the run of letters starting at {@link #pos}
+	 */
+	private int alpha() {
+		var i = pos;
+
+		while (i < end && isAlpha(line.charAt(i))) {
+			i++;
+		}
+
+		return i;
+	}
+
+	/**
+	 * @return The end of the optionally negative integer literal starting at {@link #pos}
+	 */
+	private int integer() {
+		var i = pos;
+
+		if (i < end && line.charAt(i) == '-') {
+			i++;
+		}
+
+		var digits = i;
+
+		while (i < end && isDigit(line.charAt(i))) {
+			i++;
+		}
+
+		return i == digits ? pos : i;
+	}
+
+	private boolean accept(char c) {
+		if (pos < end && line.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+
+		return false;
+	}
+
+	private boolean accept(String s) {
+		if (end - pos < s.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < s.length(); i++) {
+			if (line.charAt(pos + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+
+		pos += s.length();
+		return true;
+	}
+
+	private boolean keyword(int from, int to, String keyword) {
+		if (to - from != keyword.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < keyword.length(); i++) {
+			if ((line.charAt(from + i) & ~0x20) != keyword.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private String lowercase(int from, int to) {
+		return line.subSequence(from, to).toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return The value of the integer literal, or null if it does not fit in an int
+	 */
+	private Integer value(int from, int to) {
+		var negative = line.charAt(from) == '-';
+		var i = negative ? from + 1 : from;
+
+		if (to - i > 10) {
+			return null;
+		}
+
+		long value = 0;
+
+		for (; i < to; i++) {
+			value = value * 10 + (line.charAt(i) - '0');
+		}
+
+		value = negative ? -value : value;
+		return value == (int) value ? (int) value : null;
+	}
+
+	// Parser
+
+	private Instruction instruction() {
+		for (int i = 0; i < end; i++) {
+			if (isLineTerminator(line.charAt(i))) {
+				return null;
+			}
+		}
+
+		var inst = alpha();
+
+		if (inst == pos) {
+			return null;
+		}
+
+		var from = pos;
+		pos = inst;
+
+		// Same as String.trim()
+		while (pos < end && line.charAt(pos) <= ' ') {
+			pos++;
+		}
+
+		while (end > pos && line.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		return switch (line.charAt(from) & ~0x20) {
+			case 'L' -> keyword(from, inst, "LET") ? let() : null;
+			case 'P' -> keyword(from, inst, "PRINT") ? print() : null;
+			case 'G' -> keyword(from, inst, "GOTO") ? goto_() : keyword(from, inst, "GOSUB") ? gosub() : null;
+			case 'E' -> keyword(from, inst, "END") && pos == end ? new Instruction.End() : null;
+			case 'I' -> keyword(from, inst, "IF") ? if_() : keyword(from, inst, "INPUT") ? input() : null;
+			case 'R' -> keyword(from, inst, "RETURN") && pos == end ? new Instruction.Return() : null;
+			default -> null;
+		};
+	}
+
+	private Instruction let() {
+		var name = alpha();
+
+		if (name == pos) {
+			return null;
+		}
+
+		var res = new Instruction.Let();
+		res.name = lowercase(pos, name);
+		pos = name;
+
+		if (!accept(" = ") || pos == end) {
+			return null;
+		}
+
+		res.value = expression();
+		return res.value == null ? null : res;
+	}
+
+	private Instruction print() {
+		var res = new Instruction.Print();
+		res.value = expression();
+		return res.value == null ? null : res;
+	}
+
+	private Integer destination() {
+		var from = pos;
+
+		if (pos < end && (line.charAt(pos) == '-' || line.charAt(pos) == '+')) {
+			pos++;
+		}
+
+		var digits = pos;
+
+		while (pos < end && isDigit(line.charAt(pos))) {
+			pos++;
+		}
+
+		if (pos == digits || pos != end) {
+			return null;
+		}
+
+		// Integer.parseInt() accepts a leading '+', value() does not
+		var dest = value(line.charAt(from) == '+' ? from + 1 : from, pos);
+		return dest == null ? null : lineMappings.get(dest);
+	}
+
+	private Instruction goto_() {
+		var dest = destination();
+
+		if (dest == null) {
+			return null;
+		}
+
+		var res = new Instruction.Goto();
+		res.destination = dest;
+		return res;
+	}
+
+	private Instruction gosub() {
+		var dest = destination();
+
+		if (dest == null) {
+			return null;
+		}
+
+		var res = new Instruction.Gosub();
+		res.destination = -dest - 1;
+		return res;
+	}
+
+	private Instruction if_() {
+		var res = new Instruction.If();
+		res.left = atom();
+
+		if (res.left == null || !accept(' ') || pos == end) {
+			return null;
+		}
+
+		res.cmp = switch (line.charAt(pos++)) {
+			case '=' -> Comparison.Eq;
+			case '<' -> Comparison.Lt;
+			case '>' -> Comparison.Gt;
+			default -> null;
+		};
+
+		if (res.cmp == null || !accept(' ')) {
+			return null;
+		}
+
+		res.right = atom();
+
+		if (res.right == null || !accept(" GOTO ")) {
+			return null;
+		}
+
+		var digits = pos;
+
+		while (pos < end && isDigit(line.charAt(pos))) {
+			pos++;
+		}
+
+		if (pos == digits || pos != end) {
+			return null;
+		}
+
+		var dest = value(digits, pos);
+		var mappedDest = dest == null ? null : lineMappings.get(dest);
+
+		if (mappedDest == null) {
+			return null;
+		}
+
+		res.destination = mappedDest;
+		return res;
+	}
+
+	private Instruction input() {
+		var name = alpha();
+
+		if (name == pos || name != end) {
+			return null;
+		}
+
+		var res = new Instruction.Input();
+		res.name = lowercase(pos, name);
+		return res;
+	}
+
+	/**
+	 * Parse the expression from {@link #pos} until {@link #end}
+	 */
+	private Expression expression() {
+		if (pos == end) {
+			return null;
+		}
+
+		var first = line.charAt(pos);
+
+		if ((first == '"' || first == '\'') && end - pos >= 2 && line.charAt(end - 1) == first) {
+			var res = new Expression.Str(line.subSequence(pos + 1, end - 1).toString());
+			pos = end;
+			return res;
+		}
+
+		var left = atom();
+
+		if (left == null) {
+			return null;
+		} else if (pos == end) {
+			return left;
+		}
+
+		if (!accept(' ') || pos == end) {
+			return null;
+		}
+
+		var operand = switch (line.charAt(pos++)) {
+			case '+' -> Expression.Calculation.Operand.Add;
+			case '-' -> Expression.Calculation.Operand.Sub;
+			case '*' -> Expression.Calculation.Operand.Mul;
+			case '/' -> Expression.Calculation.Operand.Div;
+			default -> null;
+		};
+
+		if (operand == null || !accept(' ')) {
+			return null;
+		}
+
+		var right = atom();
+
+		if (right == null || pos != end) {
+			return null;
+		}
+
+		// Specialised once the variables have their slots
+		var res = new Expression.Calculation();
+		res.left = left;
+		res.operand = operand;
+		res.right = right;
+		return res;
+	}
+
+	/**
+	 * Parse a variable name or an integer literal
+	 */
+	private Expression atom() {
+		var name = alpha();
+
+		if (name != pos) {
+			var res = new Expression.Variable();
+			res.name = lowercase(pos, name);
+			pos = name;
+			return res;
+		}
+
+		var integer = integer();
+
+		if (integer != pos) {
+			var value = value(pos, integer);
+
+			if (value == null) {
+				return null;
+			}
+
+			var res = new Expression.Int();
+			res.value = value;
+			pos = integer;
+			return res;
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,114 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one {@link CompiledProgram} once for every input, in parallel. Every run gets its own
+ * {@link ExecutionContext}, so the only thing the runs share is the parsed program.
+ */
+class BatchRunner {
+	private final CompiledProgram program;
+	private final int line;
+	private ExecutionMode mode = ExecutionMode.TREE_WALKER;
+
+	/**
+	 * @param program The program to run
+	 * @param line    The line number every run starts at
+	 */
+	BatchRunner(CompiledProgram program, int line) {
+		this.program = Objects.requireNonNull(program);
+		this.line = line;
+	}
+
+	void setExecutionMode(ExecutionMode mode) {
+		this.mode = Objects.requireNonNull(mode);
+	}
+
+	/**
+	 * Run the program for every input, each on its own virtual thread
+	 *
+	 * @param inputs The stdin of every run
+	 * @return The result of every run, in the order of the inputs
+	 * @throws InterruptedException If interrupted while waiting for the runs, which are then cancelled
+	 */
+	List<Result> run(List<? extends ProgrammableCalculatorInterface.LineReader> inputs) throws InterruptedException {
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			return run(inputs, executor);
+		}
+	}
+
+	/**
+	 * Run the program for every input on the given executor, for example a fixed thread pool to bound the
+	 * number of concurrent runs. The executor is not shut down.
+	 *
+	 * @param inputs   The stdin of every run
+	 * @param executor The executor to run on
+	 * @return The result of every run, in the order of the inputs
+	 * @throws InterruptedException If interrupted while waiting for the runs, which are then cancelled
+	 */
+	List<Result> run(
+			List<? extends ProgrammableCalculatorInterface.LineReader> inputs,
+			ExecutorService executor
+	) throws InterruptedException {
+		var futures = new ArrayList<Future<Result>>(inputs.size());
+
+		for (var input : inputs) {
+			futures.add(executor.submit(() -> runOne(input)));
+		}
+
+		var res = new ArrayList<Result>(futures.size());
+
+		try {
+			for (var future : futures) {
+				res.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			futures.forEach(future -> future.cancel(true));
+			throw e;
+		} catch (ExecutionException e) {
+			// Runs catch their own exceptions, only errors get here
+			if (e.getCause() instanceof Error error) {
+				throw error;
+			}
+
+			throw new IllegalStateException(e.getCause());
+		}
+
+		return res;
+	}
+
+	private Result runOne(ProgrammableCalculatorInterface.LineReader input) {
+		var ctx = program.newContext();
+		var output = new ArrayList<String>();
+		ctx.mode = mode;
+		ctx.stdin = input;
+		ctx.stdout = output::add;
+
+		RuntimeException error = null;
+		var start = System.nanoTime();
+
+		try {
+			program.run(line, ctx);
+		} catch (RuntimeException e) {
+			error = e;
+		}
+
+		return new Result(output, Duration.ofNanos(System.nanoTime() - start), ctx.steps, error);
+	}
+
+	/**
+	 * The result of one run
+	 *
+	 * @param output   The printed lines
+	 * @param wallTime The time from the start to the end of the run, including waiting for stdin
+	 * @param steps    The number of executed lines
+	 * @param error    The exception which stopped the run, or null if it ended normally
+	 */
+	record Result(List<String> output, Duration wallTime, long steps, RuntimeException error) {
+	}
+}
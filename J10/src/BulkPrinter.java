@@ -0,0 +1,30 @@
+/**
+ * An output sink receiving many printed lines at once, see
+ * {@link ProgrammableCalculator#setBufferedStdout(BulkPrinter)}
+ */
+@FunctionalInterface
+interface BulkPrinter {
+	/**
+	 * Write a chunk of output
+	 *
+	 * @param lines One or more lines, each terminated by '\n'. The sequence is reused after the call returns,
+	 *              so it has to be copied if it is kept.
+	 */
+	void printLines(CharSequence lines);
+
+	/**
+	 * @return A sink passing every line to the given {@link ProgrammableCalculatorInterface.LinePrinter}
+	 */
+	static BulkPrinter of(ProgrammableCalculatorInterface.LinePrinter printer) {
+		return lines -> {
+			var start = 0;
+
+			for (int i = 0; i < lines.length(); i++) {
+				if (lines.charAt(i) == '\n') {
+					printer.printLine(lines.subSequence(start, i).toString());
+					start = i + 1;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,620 @@
+import java.util.*;
+
+/**
+ * A BASIC program lowered to a flat int[] opcode stream and executed by a single switch-based loop.
+ * <br>
+ * Every expression is encoded as 5 ints: the calculation operand (or {@link #NONE}) followed by two
+ * operands, each being a kind ({@link #CONST}, {@link #VAR} or {@link #STR}) and a value. The common forms
+ * of LET, PRINT and IF, and the {@link Superinstruction}s of the tree walker, have their own opcodes with
+ * the operands inline instead, and one opcode per comparison.
+ * <br>
+ * The program compiled for runs from a given line reads the variables proven to be set by
+ * {@link DefUseAnalysis} without checking them.
+ */
+class Bytecode {
+	static final int END = 0;
+	static final int LET = 1;
+	static final int PRINT_STR = 2;
+	static final int PRINT_INT = 3;
+	static final int GOTO = 4;
+	static final int IF = 5;
+	static final int GOSUB = 6;
+	static final int RETURN = 7;
+	static final int INPUT = 8;
+	static final int FAIL = 9;
+	static final int NOP = 10;
+	/**
+	 * The end of the program after the last line
+	 */
+	static final int EXIT = 11;
+	/**
+	 * {@code LET v = c}, {@code LET v = w} and {@code LET v = w + c}
+	 */
+	static final int LET_CONST = 12;
+	static final int LET_VAR = 13;
+	static final int LET_ADD = 14;
+	static final int PRINT_VAR = 15;
+	/**
+	 * {@code IF v cmp c GOTO n} and {@code IF v cmp w GOTO n}, one opcode per comparison, in the order of
+	 * {@link #EQ}, {@link #LT} and {@link #GT}
+	 */
+	static final int IF_EQ_CONST = 16;
+	static final int IF_LT_CONST = 17;
+	static final int IF_GT_CONST = 18;
+	static final int IF_EQ_VARS = 19;
+	static final int IF_LT_VARS = 20;
+	static final int IF_GT_VARS = 21;
+	/**
+	 * {@link Superinstruction.IncrementAndCompareConst} and {@link Superinstruction.IncrementAndCompareVar},
+	 * one opcode per comparison, followed by the code of the IF on its own
+	 */
+	static final int INCREMENT_IF_EQ_CONST = 22;
+	static final int INCREMENT_IF_LT_CONST = 23;
+	static final int INCREMENT_IF_GT_CONST = 24;
+	static final int INCREMENT_IF_EQ_VAR = 25;
+	static final int INCREMENT_IF_LT_VAR = 26;
+	static final int INCREMENT_IF_GT_VAR = 27;
+	/**
+	 * Added to the opcodes from {@link #LET_VAR} on if {@link DefUseAnalysis} proved that every variable they
+	 * read is set, so that they read it without a check. {@link #DEFINED_VAR} does the same for the operands
+	 * of the other opcodes.
+	 */
+	static final int DEFINED = 32;
+
+	static final int CONST = 0;
+	static final int VAR = 1;
+	static final int STR = 2;
+	static final int DEFINED_VAR = 3;
+
+	static final int NONE = 0;
+	static final int ADD = 1;
+	static final int SUB = 2;
+	static final int MUL = 3;
+	static final int DIV = 4;
+
+	static final int EQ = 0;
+	static final int LT = 1;
+	static final int GT = 2;
+
+	/**
+	 * The opcode stream
+	 */
+	final int[] code;
+	/**
+	 * The code offset of every program index, with one extra entry for the end of the program
+	 */
+	final int[] offsets;
+	/**
+	 * The program index of every opcode, used for error reporting
+	 */
+	final int[] indices;
+	final String[] strings;
+	/**
+	 * The lines which failed to parse, parsed again when they are executed to throw a fresh syntax error
+	 */
+	final MaybeUnparsedInstruction[] failed;
+	private final NavigableMap<Integer, Integer> lineMappings;
+	private final SymbolTable symbols;
+
+	private Bytecode(Writer w, int[] offsets, NavigableMap<Integer, Integer> lineMappings, SymbolTable symbols) {
+		code = Arrays.copyOf(w.code, w.size);
+		indices = Arrays.copyOf(w.indices, w.size);
+		this.offsets = offsets;
+		strings = w.strings.toArray(String[]::new);
+		failed = w.failed.toArray(MaybeUnparsedInstruction[]::new);
+		this.lineMappings = lineMappings;
+		this.symbols = symbols;
+	}
+
+	/**
+	 * @param analysis The analysis of the runs the program is compiled for, or null to check every read
+	 */
+	static Bytecode compile(
+			List<MaybeUnparsedInstruction> program,
+			NavigableMap<Integer, Integer> lineMappings,
+			SymbolTable symbols,
+			DefUseAnalysis analysis
+	) {
+		var w = new Writer();
+		var offsets = new int[program.size() + 1];
+		var parsed = new Instruction[program.size()];
+
+		for (int i = 0; i < parsed.length; i++) {
+			try {
+				parsed[i] = program.get(i).get(lineMappings, symbols);
+
+				if (analysis != null && analysis.reachable(i)) {
+					parsed[i] = analysis.markDefined(i, parsed[i]);
+				}
+			} catch (RuntimeException | AssertionError e) {
+				// BasicParser hands lines it rejects to the regex parser, which asserts that its patterns match,
+				// the error is only reported if the line runs
+				parsed[i] = null;
+			}
+		}
+
+		for (int i = 0; i < parsed.length; i++) {
+			offsets[i] = w.size;
+			w.index = i;
+
+			if (parsed[i] == null) {
+				w.emit(FAIL, w.failed.size());
+				w.failed.add(program.get(i));
+				continue;
+			}
+
+			var next = parsed[i] instanceof Instruction.Let && i + 1 < parsed.length ? parsed[i + 1] : null;
+			w.instruction(Superinstruction.fuse(i, parsed[i], next), i);
+		}
+
+		offsets[program.size()] = w.size;
+		w.index = program.size();
+		w.emit(EXIT);
+
+		var res = new Bytecode(w, offsets, lineMappings, symbols);
+
+		// Jump destinations are program indices until every offset is known
+		for (int pc = 0; pc < res.code.length; pc += length(res.code[pc])) {
+			switch (res.code[pc] & ~DEFINED) {
+				case GOTO, GOSUB -> res.code[pc + 1] = offsets[res.code[pc + 1]];
+				case IF -> res.code[pc + 6] = offsets[res.code[pc + 6]];
+				case IF_EQ_CONST, IF_LT_CONST, IF_GT_CONST, IF_EQ_VARS, IF_LT_VARS, IF_GT_VARS ->
+						res.code[pc + 3] = offsets[res.code[pc + 3]];
+				case INCREMENT_IF_EQ_CONST, INCREMENT_IF_LT_CONST, INCREMENT_IF_GT_CONST, INCREMENT_IF_EQ_VAR,
+					 INCREMENT_IF_LT_VAR, INCREMENT_IF_GT_VAR -> {
+					res.code[pc + 4] = offsets[res.code[pc + 4]];
+					res.code[pc + 5] = offsets[res.code[pc + 5]];
+				}
+			}
+		}
+
+		return res;
+	}
+
+	static int length(int opcode) {
+		return switch (opcode & ~DEFINED) {
+			case END, RETURN, NOP, EXIT -> 1;
+			case GOTO, INPUT, FAIL, PRINT_STR, PRINT_VAR -> 2;
+			case GOSUB, LET_CONST, LET_VAR -> 3;
+			case LET_ADD, IF_EQ_CONST, IF_LT_CONST, IF_GT_CONST, IF_EQ_VARS, IF_LT_VARS, IF_GT_VARS -> 4;
+			case PRINT_INT, INCREMENT_IF_EQ_CONST, INCREMENT_IF_LT_CONST, INCREMENT_IF_GT_CONST, INCREMENT_IF_EQ_VAR,
+				 INCREMENT_IF_LT_VAR, INCREMENT_IF_GT_VAR -> 6;
+			case IF, LET -> 7;
+			default -> throw new IllegalStateException("Unknown opcode " + opcode);
+		};
+	}
+
+	/**
+	 * Run the program starting at the given program index
+	 *
+	 * @param index The program index of the first instruction
+	 * @param ctx The execution context
+	 * @param stack The GOSUB stack, holding program indices
+	 */
+	void run(int index, ExecutionContext ctx, ReturnStack stack) {
+		final var code = this.code;
+		var pc = offsets[index];
+		var steps = ctx.steps;
+		var nextCheck = ctx.nextCheck;
+
+		try {
+			while (true) {
+				if (steps >= nextCheck && code[pc] != EXIT) {
+					ctx.steps = steps;
+					nextCheck = ctx.safepoint(indices[pc]);
+				}
+
+				steps++;
+
+				switch (code[pc]) {
+					case END -> {
+						return;
+					}
+					case EXIT -> {
+						// Not a line of the program
+						steps--;
+						return;
+					}
+					case LET -> {
+						ctx.setVar(code[pc + 1], eval(code, pc + 2, ctx));
+						pc += 7;
+					}
+					case LET_CONST -> {
+						ctx.setVar(code[pc + 1], code[pc + 2]);
+						pc += 3;
+					}
+					case LET_VAR -> {
+						ctx.setVar(code[pc + 1], ctx.getVar(code[pc + 2]));
+						pc += 3;
+					}
+					case LET_ADD -> {
+						ctx.setVar(code[pc + 1], ctx.getVar(code[pc + 2]) + code[pc + 3]);
+						pc += 4;
+					}
+					case PRINT_VAR -> {
+						ctx.print(ctx.getVar(code[pc + 1]));
+						pc += 2;
+					}
+					case LET_VAR | DEFINED -> {
+						ctx.setVar(code[pc + 1], ctx.getVar(code[pc + 2], true));
+						pc += 3;
+					}
+					case LET_ADD | DEFINED -> {
+						ctx.setVar(code[pc + 1], ctx.getVar(code[pc + 2], true) + code[pc + 3]);
+						pc += 4;
+					}
+					case PRINT_VAR | DEFINED -> {
+						ctx.print(ctx.getVar(code[pc + 1], true));
+						pc += 2;
+					}
+					case IF_EQ_CONST -> pc = ctx.getVar(code[pc + 1]) == code[pc + 2] ? code[pc + 3] : pc + 4;
+					case IF_LT_CONST -> pc = ctx.getVar(code[pc + 1]) < code[pc + 2] ? code[pc + 3] : pc + 4;
+					case IF_GT_CONST -> pc = ctx.getVar(code[pc + 1]) > code[pc + 2] ? code[pc + 3] : pc + 4;
+					case IF_EQ_VARS -> pc = ctx.getVar(code[pc + 1]) == ctx.getVar(code[pc + 2]) ? code[pc + 3] : pc + 4;
+					case IF_LT_VARS -> pc = ctx.getVar(code[pc + 1]) < ctx.getVar(code[pc + 2]) ? code[pc + 3] : pc + 4;
+					case IF_GT_VARS -> pc = ctx.getVar(code[pc + 1]) > ctx.getVar(code[pc + 2]) ? code[pc + 3] : pc + 4;
+					case IF_EQ_CONST | DEFINED -> pc = ctx.getVar(code[pc + 1], true) == code[pc + 2] ? code[pc + 3] : pc + 4;
+					case IF_LT_CONST | DEFINED -> pc = ctx.getVar(code[pc + 1], true) < code[pc + 2] ? code[pc + 3] : pc + 4;
+					case IF_GT_CONST | DEFINED -> pc = ctx.getVar(code[pc + 1], true) > code[pc + 2] ? code[pc + 3] : pc + 4;
+					case IF_EQ_VARS | DEFINED -> pc = ctx.getVar(code[pc + 1], true) == ctx.getVar(code[pc + 2], true) ? code[pc + 3] : pc + 4;
+					case IF_LT_VARS | DEFINED -> pc = ctx.getVar(code[pc + 1], true) < ctx.getVar(code[pc + 2], true) ? code[pc + 3] : pc + 4;
+					case IF_GT_VARS | DEFINED -> pc = ctx.getVar(code[pc + 1], true) > ctx.getVar(code[pc + 2], true) ? code[pc + 3] : pc + 4;
+					// Once the limits have to be checked, the IF runs on its own after the increment
+					case INCREMENT_IF_EQ_CONST -> {
+						var v = increment(code, pc, ctx, false);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v == code[pc + 3] ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_LT_CONST -> {
+						var v = increment(code, pc, ctx, false);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v < code[pc + 3] ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_GT_CONST -> {
+						var v = increment(code, pc, ctx, false);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v > code[pc + 3] ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_EQ_VAR -> {
+						var v = increment(code, pc, ctx, false);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v == ctx.getVar(code[pc + 3]) ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_LT_VAR -> {
+						var v = increment(code, pc, ctx, false);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v < ctx.getVar(code[pc + 3]) ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_GT_VAR -> {
+						var v = increment(code, pc, ctx, false);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v > ctx.getVar(code[pc + 3]) ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_EQ_CONST | DEFINED -> {
+						var v = increment(code, pc, ctx, true);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v == code[pc + 3] ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_LT_CONST | DEFINED -> {
+						var v = increment(code, pc, ctx, true);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v < code[pc + 3] ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_GT_CONST | DEFINED -> {
+						var v = increment(code, pc, ctx, true);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v > code[pc + 3] ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_EQ_VAR | DEFINED -> {
+						var v = increment(code, pc, ctx, true);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v == ctx.getVar(code[pc + 3], true) ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_LT_VAR | DEFINED -> {
+						var v = increment(code, pc, ctx, true);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v < ctx.getVar(code[pc + 3], true) ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case INCREMENT_IF_GT_VAR | DEFINED -> {
+						var v = increment(code, pc, ctx, true);
+
+						if (steps >= nextCheck) {
+							pc += 6;
+						} else {
+							steps++;
+							pc = v > ctx.getVar(code[pc + 3], true) ? code[pc + 4] : code[pc + 5];
+						}
+					}
+					case PRINT_STR -> {
+						ctx.print(strings[code[pc + 1]]);
+						pc += 2;
+					}
+					case PRINT_INT -> {
+						ctx.print(eval(code, pc + 1, ctx));
+						pc += 6;
+					}
+					case GOTO -> pc = code[pc + 1];
+					case IF -> {
+						var left = operand(code[pc + 2], code[pc + 3], ctx);
+						var right = operand(code[pc + 4], code[pc + 5], ctx);
+						pc = compare(code[pc + 1], left, right) ? code[pc + 6] : pc + 7;
+					}
+					case GOSUB -> {
+						stack.push(code[pc + 2]);
+						pc = code[pc + 1];
+					}
+					case RETURN -> pc = offsets[stack.pop(indices[pc])];
+					case INPUT -> {
+						ctx.setVar(code[pc + 1], ctx.readInt());
+						pc += 2;
+					}
+					case FAIL -> throw syntaxError(code[pc + 1]);
+					case NOP -> pc += 1;
+					default -> throw new IllegalStateException("Unknown opcode " + code[pc]);
+				}
+			}
+		} finally {
+			ctx.steps = steps;
+		}
+	}
+
+	private static boolean compare(int cmp, int left, int right) {
+		return switch (cmp) {
+			case EQ -> left == right;
+			case LT -> left < right;
+			default -> left > right;
+		};
+	}
+
+	/**
+	 * Run the increment of an INCREMENT_IF opcode
+	 *
+	 * @param defined Whether the variable is proven to be set
+	 * @return The new value of the variable
+	 */
+	private static int increment(int[] code, int pc, ExecutionContext ctx, boolean defined) {
+		var v = ctx.getVar(code[pc + 1], defined) + code[pc + 2];
+		ctx.setVar(code[pc + 1], v);
+		return v;
+	}
+
+	/**
+	 * Parse a line which failed to parse again, throwing its syntax error
+	 */
+	private RuntimeException syntaxError(int failed) {
+		this.failed[failed].get(lineMappings, symbols);
+		return new IllegalStateException("A line parsed after failing to parse");
+	}
+
+	private int eval(int[] code, int at, ExecutionContext ctx) {
+		var left = operand(code[at + 1], code[at + 2], ctx);
+
+		return switch (code[at]) {
+			case NONE -> left;
+			case ADD -> left + operand(code[at + 3], code[at + 4], ctx);
+			case SUB -> left - operand(code[at + 3], code[at + 4], ctx);
+			case MUL -> left * operand(code[at + 3], code[at + 4], ctx);
+			default -> left / operand(code[at + 3], code[at + 4], ctx);
+		};
+	}
+
+	private int operand(int kind, int value, ExecutionContext ctx) {
+		return switch (kind) {
+			case CONST -> value;
+			case VAR -> ctx.getVar(value);
+			case DEFINED_VAR -> ctx.getVar(value, true);
+			default -> throw new ExpressionValueException("string '" + strings[value] + "' can not be converted to an integer");
+		};
+	}
+
+	static class Writer {
+		int[] code = new int[256];
+		int[] indices = new int[256];
+		int size = 0;
+		int index = 0;
+		final List<String> strings = new ArrayList<>();
+		final List<MaybeUnparsedInstruction> failed = new ArrayList<>();
+
+		void emit(int... words) {
+			if (size + words.length > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+				indices = Arrays.copyOf(indices, code.length);
+			}
+
+			for (var word : words) {
+				indices[size] = index;
+				code[size++] = word;
+			}
+		}
+
+		int string(String s) {
+			strings.add(s);
+			return strings.size() - 1;
+		}
+
+		void instruction(Instruction instruction, int index) {
+			switch (instruction) {
+				case Superinstruction.IncrementAndCompareConst s ->
+						emit(INCREMENT_IF_EQ_CONST + cmp(s.cmp()) + defined(s.defined()), s.slot(), s.increment(), s.value(), s.destination(), s.fallthrough());
+				case Superinstruction.IncrementAndCompareVar s ->
+						emit(INCREMENT_IF_EQ_VAR + cmp(s.cmp()) + defined(s.defined() && s.otherDefined()), s.slot(), s.increment(), s.other(), s.destination(), s.fallthrough());
+				case Superinstruction.CompareConst s -> emit(IF_EQ_CONST + cmp(s.cmp()) + defined(s.defined()), s.slot(), s.value(), s.destination());
+				case Superinstruction.CompareVars s ->
+						emit(IF_EQ_VARS + cmp(s.cmp()) + defined(s.leftDefined() && s.rightDefined()), s.left(), s.right(), s.destination());
+				case Instruction.Let let when constant(let.value) != null -> emit(LET_CONST, let.slot, constant(let.value));
+				case Instruction.Let let when let.value instanceof Expression.Variable v -> emit(LET_VAR + defined(v.defined), let.slot, v.slot);
+				case Instruction.Let let when increment(let.value) != null -> {
+					var calc = (Expression.Calculation) let.value;
+					var variable = calc.left instanceof Expression.Variable v ? v : (Expression.Variable) calc.right;
+					emit(LET_ADD + defined(variable.defined), let.slot, variable.slot, increment(let.value));
+				}
+				case Instruction.Print print when print.value instanceof Expression.Variable v -> emit(PRINT_VAR + defined(v.defined), v.slot);
+				case Instruction.Let let -> {
+					emit(LET, let.slot);
+					expression(let.value);
+				}
+				case Instruction.Print print -> {
+					if (print.value instanceof Expression.Str str) {
+						emit(PRINT_STR, string(str.content));
+					} else {
+						emit(PRINT_INT);
+						expression(print.value);
+					}
+				}
+				case Instruction.Goto goto_ -> emit(GOTO, goto_.destination);
+				case Instruction.End ignored -> emit(END);
+				case Instruction.If if_ -> {
+					emit(IF, cmp(if_.cmp));
+					operand(if_.left);
+					operand(if_.right);
+					emit(if_.destination);
+				}
+				case Instruction.Input input -> emit(INPUT, input.slot);
+				case Instruction.Gosub gosub -> emit(GOSUB, -gosub.destination - 1, index + 1);
+				case Instruction.Return ignored -> emit(RETURN);
+				case Instruction.Nop ignored -> emit(NOP);
+				default -> throw new IllegalStateException("Can not compile " + instruction.getClass().getName());
+			}
+		}
+
+		/**
+		 * @return The offset of the opcode reading only variables proven to be set, or 0
+		 */
+		static int defined(boolean defined) {
+			return defined ? DEFINED : 0;
+		}
+
+		static int cmp(Comparison cmp) {
+			return switch (cmp) {
+				case Eq -> EQ;
+				case Lt -> LT;
+				case Gt -> GT;
+			};
+		}
+
+		/**
+		 * @return The value of a constant expression, or null if it is not one
+		 */
+		static Integer constant(Expression expression) {
+			return switch (expression) {
+				case Expression.Int i -> i.value;
+				case Expression.Str s when s.numeric -> s.value;
+				default -> null;
+			};
+		}
+
+		/**
+		 * @return The constant added by {@code w + c}, {@code c + w} or {@code w - c}, or null if the
+		 * expression is none of these
+		 */
+		static Integer increment(Expression expression) {
+			if (!(expression instanceof Expression.Calculation calc)) {
+				return null;
+			}
+
+			if (calc.left instanceof Expression.Variable && constant(calc.right) != null) {
+				return switch (calc.operand) {
+					case Add -> constant(calc.right);
+					// Wraps around like the subtraction, also for Integer.MIN_VALUE
+					case Sub -> -constant(calc.right);
+					default -> null;
+				};
+			}
+
+			if (calc.operand == Expression.Calculation.Operand.Add && constant(calc.left) != null && calc.right instanceof Expression.Variable) {
+				return constant(calc.left);
+			}
+
+			return null;
+		}
+
+		void expression(Expression expression) {
+			if (expression instanceof Expression.Calculation calc) {
+				var op = switch (calc.operand) {
+					case Add -> ADD;
+					case Sub -> SUB;
+					case Mul -> MUL;
+					case Div -> DIV;
+				};
+
+				emit(op);
+				operand(calc.left);
+				operand(calc.right);
+			} else {
+				emit(NONE);
+				operand(expression);
+				emit(CONST, 0);
+			}
+		}
+
+		void operand(Expression expression) {
+			switch (expression) {
+				case Expression.Int i -> emit(CONST, i.value);
+				case Expression.Variable v -> emit(v.defined ? DEFINED_VAR : VAR, v.slot);
+				case Expression.Str s -> {
+					if (s.numeric) {
+						emit(CONST, s.value);
+					} else {
+						emit(STR, string(s.content));
+					}
+				}
+				default -> throw new IllegalStateException("Can not compile " + expression.getClass().getName());
+			}
+		}
+	}
+}
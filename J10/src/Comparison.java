@@ -0,0 +1,57 @@
+enum Comparison {
+	Eq {
+		@Override
+		boolean eval(Expression left, Expression right, ExecutionContext ctx) {
+			return left.intValue(ctx) == right.intValue(ctx);
+		}
+
+		@Override
+		boolean test(int left, int right) {
+			return left == right;
+		}
+
+		@Override
+		Comparison flip() {
+			return Eq;
+		}
+	}, Lt {
+		@Override
+		boolean eval(Expression left, Expression right, ExecutionContext ctx) {
+			return left.intValue(ctx) < right.intValue(ctx);
+		}
+
+		@Override
+		boolean test(int left, int right) {
+			return left < right;
+		}
+
+		@Override
+		Comparison flip() {
+			return Gt;
+		}
+	}, Gt {
+		@Override
+		boolean eval(Expression left, Expression right, ExecutionContext ctx) {
+			return left.intValue(ctx) > right.intValue(ctx);
+		}
+
+		@Override
+		boolean test(int left, int right) {
+			return left > right;
+		}
+
+		@Override
+		Comparison flip() {
+			return Lt;
+		}
+	};
+
+	abstract boolean eval(Expression left, Expression right, ExecutionContext ctx);
+
+	abstract boolean test(int left, int right);
+
+	/**
+	 * @return The comparison with its operands swapped, so that {@code a cmp b == b cmp.flip() a}
+	 */
+	abstract Comparison flip();
+}
@@ -0,0 +1,501 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * An on-disk cache of parsed programs, see {@link ProgrammableCalculator#setCompileCache(Path)}. Every
+ * source file gets one entry in the cache directory, named after the SHA-256 hash of its content, holding the
+ * source and the parsed instruction of every line. Loading a file with an entry reads the entry and decodes
+ * the instructions instead of parsing them. The decoded sources are views into the bytes read, never into a
+ * mapping of the entry, which would fault if the entry was changed while the program is in use.
+ * <br>
+ * The binary format is big-endian:
+ * <pre>
+ * int   magic ("BCCH")
+ * int   version
+ * byte[32] SHA-256 of the source file
+ * int   number of variables, each followed by its name (short length, UTF-8)
+ * int   number of lines, each followed by
+ *       int line number, int source length, UTF-8 source, instruction
+ * </pre>
+ * Instructions and expressions are a tag byte followed by their operands, variables are slots into the
+ * variable names of the entry and destinations are program indices. Lines which do not parse are stored
+ * without an instruction, so that the syntax error is reported when they are executed.
+ * <br>
+ * Entries with a different magic or version, or which do not decode, are ignored and written again. The
+ * version has to be increased whenever the format or the instruction classes change.
+ */
+class CompileCache {
+	private static final int MAGIC = 0x42434348;
+	static final int VERSION = 1;
+	private static final String SUFFIX = ".bcc";
+
+	private static final byte UNPARSED = 0;
+	private static final byte LET = 1;
+	private static final byte PRINT = 2;
+	private static final byte GOTO = 3;
+	private static final byte END = 4;
+	private static final byte IF = 5;
+	private static final byte INPUT = 6;
+	private static final byte GOSUB = 7;
+	private static final byte RETURN = 8;
+
+	private static final byte VARIABLE = 0;
+	private static final byte STR = 1;
+	private static final byte INT = 2;
+	private static final byte CALCULATION = 3;
+
+	private final Path directory;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param directory The cache directory, created if it does not exist
+	 */
+	CompileCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Load a program from a source file, using the cache entry if there is one and writing it otherwise
+	 *
+	 * @param path     The path of the BASIC source file
+	 * @param symbols  The symbol table of the new program
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * @param executor The executor parsing the lines which are not in the cache
+	 * @throws IOException If the source file can not be read
+	 */
+	CompiledProgram load(Path path, SymbolTable symbols, boolean optimize, Executor executor) throws IOException {
+		var source = MappedSource.mapFile(path);
+		var hash = hash(source);
+		var entry = directory.resolve(HexFormat.of().formatHex(hash) + SUFFIX);
+
+		if (Files.isRegularFile(entry)) {
+			try {
+				var res = decode(ByteBuffer.wrap(Files.readAllBytes(entry)), hash, symbols, optimize, executor);
+
+				if (res != null) {
+					synchronized (this) {
+						hits++;
+					}
+
+					return res;
+				}
+			} catch (IOException ignored) {
+				// An unreadable entry is written again
+			}
+		}
+
+		synchronized (this) {
+			misses++;
+		}
+
+		var data = encode(MappedSource.of(source), hash, executor);
+
+		try {
+			Files.createDirectories(directory);
+			var temp = Files.createTempFile(directory, null, ".tmp");
+
+			try {
+				Files.write(temp, data);
+				Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException ignored) {
+			// The cache is optional, the program is loaded without it
+		}
+
+		return decode(ByteBuffer.wrap(data), hash, symbols, optimize, executor);
+	}
+
+	/**
+	 * @return How many programs were loaded from the cache
+	 */
+	synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return How many programs had to be parsed
+	 */
+	synchronized long misses() {
+		return misses;
+	}
+
+	private static byte[] hash(ByteBuffer source) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			digest.update(source.duplicate());
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Writing
+
+	/**
+	 * @param executor The executor parsing the lines, in chunks of {@link CompiledProgram#PARSE_CHUNK}
+	 */
+	private static byte[] encode(MappedSource source, byte[] hash, Executor executor) throws IOException {
+		var symbols = new SymbolTable();
+		var lineMappings = new TreeMap<Integer, Integer>();
+
+		for (int i = 0; i < source.size; i++) {
+			lineMappings.put(source.numbers[i], i);
+		}
+
+		var instructions = new Instruction[source.size];
+		var chunks = new CompletableFuture<?>[(source.size + CompiledProgram.PARSE_CHUNK - 1) / CompiledProgram.PARSE_CHUNK];
+
+		for (int c = 0; c < chunks.length; c++) {
+			var from = c * CompiledProgram.PARSE_CHUNK;
+			var to = Math.min(from + CompiledProgram.PARSE_CHUNK, source.size);
+
+			chunks[c] = CompletableFuture.runAsync(() -> {
+				for (int i = from; i < to; i++) {
+					try {
+						instructions[i] = BasicParser.parse(source.instructions[i], lineMappings, symbols);
+					} catch (RuntimeException | AssertionError e) {
+						// BasicParser hands lines it rejects to the regex parser, which asserts that its patterns match,
+						// the error is reported if the line is executed
+						instructions[i] = null;
+					}
+				}
+			}, executor);
+		}
+
+		CompletableFuture.allOf(chunks).join();
+
+		var bytes = new ByteArrayOutputStream(source.size * 32 + 64);
+		var out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.write(hash);
+		out.writeInt(symbols.size());
+
+		for (int slot = 0; slot < symbols.size(); slot++) {
+			var name = symbols.encodedName(slot);
+			out.writeShort(name.length);
+			out.write(name);
+		}
+
+		out.writeInt(source.size);
+
+		for (int i = 0; i < source.size; i++) {
+			var text = source.instructions[i].toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(source.numbers[i]);
+			out.writeInt(text.length);
+			out.write(text);
+			write(out, instructions[i]);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static void write(DataOutputStream out, Instruction instruction) throws IOException {
+		switch (instruction) {
+			case Instruction.Let let -> {
+				out.writeByte(LET);
+				out.writeInt(let.slot);
+				write(out, let.value);
+			}
+			case Instruction.Print print -> {
+				out.writeByte(PRINT);
+				write(out, print.value);
+			}
+			case Instruction.Goto goto_ -> {
+				out.writeByte(GOTO);
+				out.writeInt(goto_.destination);
+			}
+			case Instruction.End ignored -> out.writeByte(END);
+			case Instruction.If if_ -> {
+				out.writeByte(IF);
+				out.writeByte(if_.cmp.ordinal());
+				write(out, if_.left);
+				write(out, if_.right);
+				out.writeInt(if_.destination);
+			}
+			case Instruction.Input input -> {
+				out.writeByte(INPUT);
+				out.writeInt(input.slot);
+			}
+			case Instruction.Gosub gosub -> {
+				out.writeByte(GOSUB);
+				out.writeInt(-gosub.destination - 1);
+			}
+			case Instruction.Return ignored -> out.writeByte(RETURN);
+			// Failed to parse, or an instruction the format does not know, both are parsed again when loaded
+			case null, default -> out.writeByte(UNPARSED);
+		}
+	}
+
+	private static void write(DataOutputStream out, Expression expression) throws IOException {
+		switch (expression) {
+			case Expression.Variable variable -> {
+				out.writeByte(VARIABLE);
+				out.writeInt(variable.slot);
+			}
+			case Expression.Str str -> {
+				var content = str.content.getBytes(StandardCharsets.UTF_8);
+				out.writeByte(STR);
+				out.writeInt(content.length);
+				out.write(content);
+			}
+			case Expression.Int i -> {
+				out.writeByte(INT);
+				out.writeInt(i.value);
+			}
+			case Expression.Calculation calc -> {
+				out.writeByte(CALCULATION);
+				out.writeByte(calc.operand.ordinal());
+				write(out, calc.left);
+				write(out, calc.right);
+			}
+			default -> throw new IllegalArgumentException(expression.getClass().getName());
+		}
+	}
+
+	// Reading
+
+	/**
+	 * @return The decoded program, or null if the entry has the wrong version or is damaged. Damaged entries
+	 * do not register any variable in the symbol table.
+	 */
+	private static CompiledProgram decode(
+			ByteBuffer buffer,
+			byte[] hash,
+			SymbolTable symbols,
+			boolean optimize,
+			Executor executor
+	) {
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+
+			var storedHash = new byte[hash.length];
+			buffer.get(storedHash);
+
+			if (!MessageDigest.isEqual(hash, storedHash)) {
+				return null;
+			}
+
+			var names = new String[count(buffer, Short.BYTES)];
+			var scratch = new SymbolTable();
+			var scratchSlots = new int[names.length];
+
+			for (int i = 0; i < names.length; i++) {
+				var length = buffer.getShort() & 0xffff;
+				var bytes = new byte[length];
+				buffer.get(bytes);
+				names[i] = new String(bytes, StandardCharsets.UTF_8);
+				scratchSlots[i] = scratch.slot(names[i]);
+			}
+
+			// Decode with a symbol table of its own first, so that a damaged entry fails before registering
+			var lines = buffer.position();
+			var res = lines(buffer, scratch, scratchSlots);
+
+			if (res == null) {
+				return null;
+			}
+
+			var slots = new int[names.length];
+
+			for (int i = 0; i < names.length; i++) {
+				slots[i] = symbols.slot(names[i]);
+			}
+
+			if (!Arrays.equals(slots, scratchSlots)) {
+				// The symbol table already had other variables, so the slots have to be decoded again
+				res = lines(buffer.position(lines), symbols, slots);
+			}
+
+			return CompiledProgram.preparsed(symbols, res.numbers, res.sources, res.instructions, optimize, executor);
+		} catch (RuntimeException | StackOverflowError e) {
+			// Any damage makes the entry a miss, the checked counts keep it from allocating more than its size
+			return null;
+		}
+	}
+
+	/**
+	 * Read a count or length, checking that the rest of the entry can hold that many items
+	 *
+	 * @param bytes The least number of bytes taken by one item
+	 * @throws IllegalArgumentException If the count is negative or too large
+	 */
+	private static int count(ByteBuffer buffer, int bytes) {
+		var res = buffer.getInt();
+
+		if (res < 0 || res > buffer.remaining() / bytes) {
+			throw new IllegalArgumentException("Invalid count " + res);
+		}
+
+		return res;
+	}
+
+	private record Lines(int[] numbers, CharSequence[] sources, Instruction[] instructions) {
+	}
+
+	/**
+	 * @param slots The slot in the symbol table of every variable of the entry
+	 * @return The lines of the entry, or null if there is data after them
+	 */
+	private static Lines lines(ByteBuffer buffer, SymbolTable symbols, int[] slots) {
+		var reader = new Reader(buffer, symbols);
+		reader.slots = slots;
+		// A line takes at least its number, its source length and an instruction tag
+		var size = count(buffer, 2 * Integer.BYTES + 1);
+		var numbers = new int[size];
+		var sources = new CharSequence[size];
+		var instructions = new Instruction[size];
+		reader.size = size;
+
+		for (int i = 0; i < size; i++) {
+			numbers[i] = buffer.getInt();
+			sources[i] = reader.source(count(buffer, 1));
+			instructions[i] = reader.instruction();
+		}
+
+		return buffer.hasRemaining() ? null : new Lines(numbers, sources, instructions);
+	}
+
+	private static class Reader {
+		final ByteBuffer buffer;
+		final SymbolTable symbols;
+		/**
+		 * The slot in the symbol table of every variable of the entry
+		 */
+		int[] slots;
+		int size;
+
+		Reader(ByteBuffer buffer, SymbolTable symbols) {
+			this.buffer = buffer;
+			this.symbols = symbols;
+		}
+
+		String string(int length) {
+			var bytes = new byte[length];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return A view into the buffer if the source is ASCII, the same as {@link MappedSource}
+		 */
+		CharSequence source(int length) {
+			var start = buffer.position();
+
+			for (int i = start; i < start + length; i++) {
+				if (buffer.get(i) < 0) {
+					return string(length);
+				}
+			}
+
+			buffer.position(start + length);
+			return new AsciiSequence(buffer, start, length);
+		}
+
+		int slot() {
+			return slots[buffer.getInt()];
+		}
+
+		String name(int slot) {
+			return symbols.name(slot);
+		}
+
+		int destination() {
+			var destination = buffer.getInt();
+
+			if (destination < 0 || destination >= size) {
+				throw new IllegalArgumentException("Invalid destination " + destination);
+			}
+
+			return destination;
+		}
+
+		Instruction instruction() {
+			return switch (buffer.get()) {
+				case UNPARSED -> null;
+				case LET -> {
+					var res = new Instruction.Let();
+					res.slot = slot();
+					res.name = name(res.slot);
+					res.value = expression();
+					yield res;
+				}
+				case PRINT -> {
+					var res = new Instruction.Print();
+					res.value = expression();
+					yield res;
+				}
+				case GOTO -> {
+					var res = new Instruction.Goto();
+					res.destination = destination();
+					yield res;
+				}
+				case END -> new Instruction.End();
+				case IF -> {
+					var res = new Instruction.If();
+					res.cmp = Comparison.values()[buffer.get()];
+					res.left = expression();
+					res.right = expression();
+					res.destination = destination();
+					yield res;
+				}
+				case INPUT -> {
+					var res = new Instruction.Input();
+					res.slot = slot();
+					res.name = name(res.slot);
+					yield res;
+				}
+				case GOSUB -> {
+					var res = new Instruction.Gosub();
+					res.destination = -destination() - 1;
+					yield res;
+				}
+				case RETURN -> new Instruction.Return();
+				default -> throw new IllegalArgumentException("Unknown instruction tag");
+			};
+		}
+
+		Expression expression() {
+			return switch (buffer.get()) {
+				case VARIABLE -> {
+					var res = new Expression.Variable();
+					res.slot = slot();
+					res.name = name(res.slot);
+					yield res;
+				}
+				case STR -> {
+					yield new Expression.Str(string(count(buffer, 1)));
+				}
+				case INT -> {
+					var res = new Expression.Int();
+					res.value = buffer.getInt();
+					yield res;
+				}
+				case CALCULATION -> {
+					var operand = Expression.Calculation.Operand.values()[buffer.get()];
+					var left = expression();
+					yield Expression.Calculation.of(left, operand, expression());
+				}
+				default -> throw new IllegalArgumentException("Unknown expression tag");
+			};
+		}
+	}
+}
@@ -0,0 +1,1134 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A loaded BASIC program, which can be run any number of times, also concurrently from many threads. The
+ * state of every run (variables, the GOSUB stack, stdin and stdout) is kept in its own
+ * {@link ExecutionContext} from {@link #newContext()}.
+ * <br>
+ * Unoptimised programs are loaded in stages: the lines are parsed in chunks on the parse executor, the
+ * syntax errors of all lines are collected, and then the instructions for the tree walker are published
+ * as one array. Runs wait for the array, so they never parse and never see a partially parsed program.
+ * Optimised programs are parsed lazily by the {@link Optimizer}, which only parses the reachable lines.
+ * Compilation is always lazy, but the result is the same no matter which thread gets there first, so the
+ * program behaves as if it were immutable.
+ */
+class CompiledProgram {
+	/**
+	 * The number of lines parsed by one task of the parse phase
+	 */
+	static final int PARSE_CHUNK = 4096;
+	/**
+	 * The maximum number of start lines {@link DefUseAnalysis} runs for, runs from other lines keep their
+	 * checked reads
+	 */
+	static final int DEFINED_READS_STARTS = 8;
+
+	private final SymbolTable symbols;
+	private final List<MaybeUnparsedInstruction> program;
+	private final NavigableMap<Integer, Integer> lineMappings;
+	/**
+	 * The line number of every program index
+	 */
+	private final int[] lines;
+	private final Optimizer optimizer;
+	private volatile Bytecode bytecode = null;
+	/**
+	 * The instructions with checked arithmetic, built on the first run which needs them
+	 */
+	private volatile Instruction[] checked = null;
+	private volatile JitProgram jit = null;
+	private volatile boolean jitUnsupported = false;
+	private volatile long hash = 0;
+	private final Executor executor;
+	/**
+	 * The parse phase, completed with the instruction the tree walker runs for every line, including
+	 * {@link Superinstruction}s. Null for optimised programs.
+	 */
+	private final CompletableFuture<Instruction[]> parsing;
+	/**
+	 * The result of {@link #parsing} once it is complete, read by runs without waiting
+	 */
+	private volatile Instruction[] linked = null;
+	/**
+	 * The lines which failed to parse and their errors, ascending, set before {@link #linked} is published
+	 */
+	private int[] errorLines = new int[0];
+	private Throwable[] errors = new Throwable[0];
+	/**
+	 * The instructions for the tree walker with the reads proven safe by {@link DefUseAnalysis} unchecked,
+	 * for every program index runs with an empty GOSUB stack were started from. Changing the program creates
+	 * a new one, so this only grows up to {@link #DEFINED_READS_STARTS}.
+	 */
+	private final Map<Integer, Instruction[]> definedReads = new ConcurrentHashMap<>();
+	/**
+	 * The bytecode with the reads proven safe by {@link DefUseAnalysis} unchecked, the same as
+	 * {@link #definedReads}
+	 */
+	private final Map<Integer, Bytecode> definedBytecode = new ConcurrentHashMap<>();
+
+	/**
+	 * Create an empty program, parsed on {@link #defaultExecutor()}
+	 */
+	CompiledProgram() {
+		this(defaultExecutor());
+	}
+
+	/**
+	 * Create an empty program
+	 *
+	 * @param executor The executor parsing this program and every program created from it
+	 */
+	CompiledProgram(Executor executor) {
+		this(new SymbolTable(), List.of(), new TreeMap<>(), false, 0, executor);
+	}
+
+	private CompiledProgram(
+			SymbolTable symbols,
+			List<MaybeUnparsedInstruction> program,
+			NavigableMap<Integer, Integer> lineMappings,
+			boolean optimize,
+			int start,
+			Executor executor
+	) {
+		this.symbols = symbols;
+		this.program = program;
+		this.lineMappings = lineMappings;
+		this.executor = Objects.requireNonNull(executor);
+		lines = new int[program.size()];
+
+		for (var entry : lineMappings.entrySet()) {
+			lines[entry.getValue()] = entry.getKey();
+		}
+
+		// The empty program of a new calculator is not a load
+		BasicEvents.Load event = null;
+
+		if (!program.isEmpty()) {
+			event = new BasicEvents.Load();
+			event.begin();
+			event.lines = program.size();
+			BasicEvents.loads.increment();
+		}
+
+		if (optimize) {
+			optimizer = new Optimizer(program, lineMappings, symbols, lines);
+			optimizer.reach(0);
+			optimizer.reach(start);
+			parsing = null;
+
+			if (event != null) {
+				event.optimized = true;
+				event.commit();
+			}
+
+			return;
+		}
+
+		optimizer = null;
+		parsing = parse(event);
+	}
+
+	/**
+	 * @return A shared pool of daemon threads, one for every processor, so that parsing does not compete with
+	 * other users of the common fork-join pool
+	 */
+	static Executor defaultExecutor() {
+		return DefaultExecutor.INSTANCE;
+	}
+
+	private static class DefaultExecutor {
+		static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(),
+				runnable -> {
+					var thread = new Thread(runnable, "BASIC parser");
+					thread.setDaemon(true);
+					return thread;
+				}
+		);
+	}
+
+	/**
+	 * Start the parse phase, one task for every {@link #PARSE_CHUNK} lines. Lines which are already parsed,
+	 * for example by {@link #withLine(int, CharSequence, boolean)}, are only linked.
+	 *
+	 * @param event The load event, committed once the instructions are published, null for an empty program
+	 */
+	private CompletableFuture<Instruction[]> parse(BasicEvents.Load event) {
+		var parsed = new Instruction[program.size()];
+		var failed = new Throwable[program.size()];
+		var chunks = new CompletableFuture<?>[(program.size() + PARSE_CHUNK - 1) / PARSE_CHUNK];
+
+		for (int i = 0; i < chunks.length; i++) {
+			var from = i * PARSE_CHUNK;
+			var to = Math.min(from + PARSE_CHUNK, program.size());
+			chunks[i] = CompletableFuture.runAsync(() -> parse(from, to, parsed, failed), executor);
+		}
+
+		return CompletableFuture.allOf(chunks).thenApply(ignored -> publish(parsed, failed, event));
+	}
+
+	private void parse(int from, int to, Instruction[] parsed, Throwable[] failed) {
+		for (int i = from; i < to; i++) {
+			try {
+				parsed[i] = program.get(i).get(lineMappings, symbols);
+			} catch (RuntimeException | AssertionError e) {
+				// BasicParser hands lines it rejects to the regex parser, which asserts that its patterns match,
+				// both are reported the same way
+				failed[i] = e;
+			}
+		}
+	}
+
+	/**
+	 * Collect the errors and link the parsed lines, runs on the thread completing the last chunk
+	 */
+	private Instruction[] publish(Instruction[] parsed, Throwable[] failed, BasicEvents.Load event) {
+		var errorLines = new ArrayList<Integer>();
+		var errors = new ArrayList<Throwable>();
+		var res = new Instruction[parsed.length];
+
+		for (int i = 0; i < parsed.length; i++) {
+			if (failed[i] != null) {
+				errorLines.add(lines[i]);
+				errors.add(failed[i]);
+				res[i] = new Unparsable(program.get(i), lineMappings, symbols);
+				continue;
+			}
+
+			var next = parsed[i] instanceof Instruction.Let && i + 1 < parsed.length ? parsed[i + 1] : null;
+			res[i] = Superinstruction.fuse(i, parsed[i], next);
+		}
+
+		this.errorLines = errorLines.stream().mapToInt(Integer::intValue).toArray();
+		this.errors = errors.toArray(Throwable[]::new);
+		linked = res;
+
+		if (event != null) {
+			event.errors = this.errorLines.length;
+			event.commit();
+		}
+
+		return res;
+	}
+
+	/**
+	 * Stands in for a line which failed to parse, parsing it again when it is executed to throw a fresh
+	 * syntax error
+	 */
+	private record Unparsable(
+			MaybeUnparsedInstruction line,
+			NavigableMap<Integer, Integer> lineMappings,
+			SymbolTable symbols
+	) implements Instruction {
+		public int run(ExecutionContext ctx) throws StopRun {
+			return line.get(lineMappings, symbols).run(ctx);
+		}
+	}
+
+	/**
+	 * Wait until the program is parsed, and report every line which failed to parse. Runs wait for the parse
+	 * phase anyway, and only fail once they execute one of these lines. Optimised programs are parsed while
+	 * they run, so this returns immediately.
+	 *
+	 * @throws ParseErrors If any line failed to parse
+	 */
+	void awaitParsed() {
+		if (parsing == null) {
+			return;
+		}
+
+		parsing.join();
+
+		if (errorLines.length != 0) {
+			throw new ParseErrors(errorLines, errors);
+		}
+	}
+
+	/**
+	 * @return The instructions for the tree walker, waiting for the parse phase if needed
+	 */
+	private Instruction[] linked() {
+		var res = linked;
+		return res != null ? res : parsing.join();
+	}
+
+	/**
+	 * @param start  The program index runs start from
+	 * @param linked The instructions for the tree walker
+	 * @return The instructions for the tree walker, with every read which can not fail in runs from the
+	 * given index unchecked, analysed on the first run from it. Only valid for runs starting with an empty
+	 * GOSUB stack.
+	 */
+	private Instruction[] withDefinedReads(int start, Instruction[] linked) {
+		var cached = definedReads.get(start);
+
+		if (cached != null) {
+			return cached;
+		}
+
+		if (definedReads.size() >= DEFINED_READS_STARTS) {
+			return linked;
+		}
+
+		return definedReads.computeIfAbsent(start, ignored -> {
+			var analysis = new DefUseAnalysis(this::parsed, lines, symbols, start);
+			var marked = new Instruction[linked.length];
+			var res = linked.clone();
+
+			for (int i = 0; i < marked.length; i++) {
+				var instruction = analysis.reachable(i) ? parsed(i) : null;
+				marked[i] = instruction == null ? null : analysis.markDefined(i, instruction);
+			}
+
+			for (int i = 0; i < res.length; i++) {
+				if (marked[i] != null) {
+					var next = marked[i] instanceof Instruction.Let && i + 1 < marked.length ? marked[i + 1] : null;
+					res[i] = Superinstruction.fuse(i, marked[i], next);
+				}
+			}
+
+			return res;
+		});
+	}
+
+	/**
+	 * @return The parsed instruction at the given index, or null if it fails to parse
+	 */
+	private Instruction parsed(int index) {
+		try {
+			return program.get(index).get(lineMappings, symbols);
+		} catch (RuntimeException | AssertionError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Every read of a variable which may not be set when the program is run from its first line, see
+	 * {@link DefUseAnalysis#warnings()}
+	 */
+	List<String> undefinedVariableWarnings() {
+		if (parsing != null) {
+			linked();
+		}
+
+		return new DefUseAnalysis(this::parsed, lines, symbols, 0).warnings();
+	}
+
+	/**
+	 * Load a program, see {@link ProgrammableCalculator#programCodeReader(BufferedReader)}
+	 *
+	 * @param reader   The source code
+	 * @param optimize Whether to run the {@link Optimizer}
+	 */
+	static CompiledProgram load(BufferedReader reader, boolean optimize) {
+		return new CompiledProgram().append(reader, optimize);
+	}
+
+	/**
+	 * Load a program, see {@link ProgrammableCalculator#programCodeReader(Path)}
+	 *
+	 * @param path     The path of the BASIC source file
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * @throws IOException If the file can not be read
+	 */
+	static CompiledProgram load(Path path, boolean optimize) throws IOException {
+		return new CompiledProgram().append(path, optimize);
+	}
+
+	/**
+	 * Create a new program with the lines from the reader added to the lines of this program. Lines which
+	 * are already in this program are replaced. This program is not changed.
+	 *
+	 * @param reader   The source code
+	 * @param optimize Whether to run the {@link Optimizer}
+	 */
+	CompiledProgram append(BufferedReader reader, boolean optimize) {
+		var scanner = new Scanner(reader).useDelimiter(PrecompiledRegexes.NEWLINE);
+		var lineRegex = PrecompiledRegexes.LINE;
+
+		SortedMap<Integer, CharSequence> syncProgram = Collections.synchronizedSortedMap(new TreeMap<>());
+		scanner.tokens().parallel().forEach((line) -> {
+			var matcher = lineRegex.matcher(line);
+			var matchRes = matcher.matches();
+			assert matchRes;
+
+			var index = Integer.valueOf(matcher.group("index"));
+			var instruction = matcher.group("inst");
+
+			if (ProgrammableCalculator.ASSERTIONS && syncProgram.containsKey(index)) {
+				throw new SyntaxError(index + " ...", "Duplicated line number");
+			}
+
+			syncProgram.put(index, instruction);
+		});
+
+		var numbers = new int[syncProgram.size()];
+		var instructions = new CharSequence[syncProgram.size()];
+		var i = 0;
+
+		for (var entry : syncProgram.entrySet()) {
+			numbers[i] = entry.getKey();
+			instructions[i] = entry.getValue();
+			i++;
+		}
+
+		return append(numbers, instructions, i, optimize);
+	}
+
+	/**
+	 * Create a new program with the lines from the file added to the lines of this program, see
+	 * {@link #append(BufferedReader, boolean)}. The file is memory-mapped and split into lines without
+	 * going through a {@link Scanner}.
+	 *
+	 * @param path     The path of the BASIC source file
+	 * @param optimize Whether to run the {@link Optimizer}
+	 * @throws IOException If the file can not be read
+	 */
+	CompiledProgram append(Path path, boolean optimize) throws IOException {
+		var source = MappedSource.map(path);
+		return append(source.numbers, source.instructions, source.size, optimize);
+	}
+
+	/**
+	 * Create a new program with the lines from the file added to the lines of this program, see
+	 * {@link #append(Path, boolean)}, using the cache if this program is empty
+	 *
+	 * @param cache The compile cache, or null
+	 * @throws IOException If the file can not be read
+	 */
+	CompiledProgram append(Path path, boolean optimize, CompileCache cache) throws IOException {
+		// Cached destinations are only valid if the program is not added to other lines
+		if (cache == null || !program.isEmpty()) {
+			return append(path, optimize);
+		}
+
+		return cache.load(path, symbols, optimize, executor);
+	}
+
+	/**
+	 * Create a program from already parsed lines, see {@link CompileCache}
+	 *
+	 * @param symbols      The symbol table used by the instructions
+	 * @param numbers      The line numbers, in ascending order
+	 * @param sources      The source of every line
+	 * @param instructions The parsed instruction of every line, null for lines which have to be parsed
+	 * @param optimize     Whether to run the {@link Optimizer}
+	 * @param executor     The executor parsing the program
+	 */
+	static CompiledProgram preparsed(
+			SymbolTable symbols,
+			int[] numbers,
+			CharSequence[] sources,
+			Instruction[] instructions,
+			boolean optimize,
+			Executor executor
+	) {
+		var program = new ArrayList<MaybeUnparsedInstruction>(numbers.length);
+		var lineMappings = new TreeMap<Integer, Integer>();
+
+		for (int i = 0; i < numbers.length; i++) {
+			lineMappings.put(numbers[i], i);
+			program.add(new MaybeUnparsedInstruction(sources[i], instructions[i]));
+		}
+
+		return new CompiledProgram(
+				symbols,
+				Collections.unmodifiableList(program),
+				Collections.unmodifiableNavigableMap(lineMappings),
+				optimize,
+				0,
+				executor
+		);
+	}
+
+	private CompiledProgram append(int[] numbers, CharSequence[] instructions, int size, boolean optimize) {
+		var start = program.size();
+		var newProgram = new ArrayList<MaybeUnparsedInstruction>(start + size);
+		var newLineMappings = new TreeMap<>(lineMappings);
+
+		// The old lines are parsed again, their destinations may have been replaced
+		for (var instruction : program) {
+			newProgram.add(new MaybeUnparsedInstruction(instruction.source));
+		}
+
+		for (int i = 0; i < size; i++) {
+			newLineMappings.put(numbers[i], newProgram.size());
+			newProgram.add(new MaybeUnparsedInstruction(instructions[i]));
+		}
+
+		return new CompiledProgram(
+				symbols,
+				Collections.unmodifiableList(newProgram),
+				Collections.unmodifiableNavigableMap(newLineMappings),
+				optimize,
+				start,
+				executor
+		);
+	}
+
+	/**
+	 * Create a new program with one line added, replaced or removed. This program is not changed.
+	 * <br>
+	 * Unless this program is optimised, the parsed instructions are reused: only the changed line is parsed
+	 * again, together with the GOTO, IF and GOSUB lines whose destination index moved because a line was
+	 * inserted or removed before it. Lines which failed to parse are parsed again too, so a GOTO to an
+	 * inserted line works and a GOTO to a removed line fails.
+	 *
+	 * @param line     The line number
+	 * @param source   The instruction, without the line number, or null to remove the line
+	 * @param optimize Whether to run the {@link Optimizer}
+	 */
+	CompiledProgram withLine(int line, CharSequence source, boolean optimize) {
+		var index = lineMappings.get(line);
+
+		if (source == null && index == null) {
+			return this;
+		}
+
+		var newLineMappings = new TreeMap<>(lineMappings);
+		// Destinations at or after this index move when a line is inserted or removed
+		var moved = Integer.MAX_VALUE;
+		var shift = 0;
+
+		if (source == null) {
+			newLineMappings.remove(line);
+			moved = index;
+			shift = -1;
+		} else if (index == null) {
+			var next = lineMappings.higherEntry(line);
+			index = next == null ? program.size() : next.getValue();
+			moved = index;
+			shift = 1;
+		}
+
+		if (shift != 0) {
+			for (var entry : newLineMappings.tailMap(line, false).entrySet()) {
+				entry.setValue(entry.getValue() + shift);
+			}
+		}
+
+		if (source != null) {
+			newLineMappings.put(line, index);
+		}
+
+		var newProgram = new ArrayList<MaybeUnparsedInstruction>(program.size() + shift);
+
+		for (int i = 0; i < program.size(); i++) {
+			if (i == index) {
+				if (source != null) {
+					newProgram.add(new MaybeUnparsedInstruction(source));
+				}
+
+				if (shift <= 0) {
+					continue;
+				}
+			}
+
+			var old = program.get(i);
+			// Optimised instructions depend on other lines, and may have to be optimised differently
+			var parsed = optimizer == null ? old.parsed : null;
+
+			if (parsed != null && destination(parsed) >= moved) {
+				parsed = null;
+			}
+
+			newProgram.add(new MaybeUnparsedInstruction(old.source, parsed));
+		}
+
+		if (index == program.size()) {
+			newProgram.add(new MaybeUnparsedInstruction(source));
+		}
+
+		return new CompiledProgram(
+				symbols,
+				Collections.unmodifiableList(newProgram),
+				Collections.unmodifiableNavigableMap(newLineMappings),
+				optimize,
+				Math.min(index, newProgram.size()),
+				executor
+		);
+	}
+
+	/**
+	 * @return The destination program index of a GOTO, IF or GOSUB, -1 for other instructions
+	 */
+	private static int destination(Instruction instruction) {
+		return switch (instruction) {
+			case Instruction.Goto goto_ -> goto_.destination;
+			case Instruction.If if_ -> if_.destination;
+			case Instruction.Gosub gosub -> -gosub.destination - 1;
+			default -> -1;
+		};
+	}
+
+	/**
+	 * @return A new context for running this program
+	 */
+	ExecutionContext newContext() {
+		return new ExecutionContext(symbols);
+	}
+
+	/**
+	 * @return The number of lines
+	 */
+	int size() {
+		return program.size();
+	}
+
+	/**
+	 * @return A description of every change made by the {@link Optimizer}, empty if it is disabled
+	 */
+	List<String> optimizationReport() {
+		return optimizer == null ? List.of() : optimizer.report();
+	}
+
+	/**
+	 * Run the program from the given line
+	 *
+	 * @param line The line number
+	 * @param ctx  The state of the run, from {@link #newContext()} of this program or of a program it was
+	 *             appended to
+	 */
+	void run(int line, ExecutionContext ctx) {
+		checkContext(ctx);
+		start(lineMappings.get(line), ctx);
+	}
+
+	/**
+	 * Continue a run from a snapshot of this program
+	 *
+	 * @param snapshot The snapshot
+	 * @param ctx      The state of the run, its variables and GOSUB stack are replaced by the snapshot
+	 * @throws IllegalArgumentException If the snapshot is of a different program or damaged
+	 */
+	void resume(Snapshot snapshot, ExecutionContext ctx) {
+		checkContext(ctx);
+
+		if (snapshot.programHash != hash()) {
+			throw new IllegalArgumentException("The snapshot is of a different program");
+		}
+
+		ctx.stack.lines = lines;
+		start(snapshot.restore(ctx, program.size()), ctx);
+	}
+
+	private void checkContext(ExecutionContext ctx) {
+		if (ctx.symbols != symbols) {
+			throw new IllegalArgumentException("The execution context belongs to a different program");
+		}
+	}
+
+	private void start(int pc, ExecutionContext ctx) {
+		ctx.stack.lines = lines;
+
+		if (ctx.snapshots != null) {
+			ctx.programHash = hash();
+		}
+
+		ctx.start();
+
+		var event = new BasicEvents.Run();
+		var steps = ctx.steps;
+		var inputs = ctx.inputs;
+		event.begin();
+		BasicEvents.runs.increment();
+		BasicEvents.activeRuns.increment();
+
+		try {
+			run(pc, ctx, ctx.stack);
+		} finally {
+			BasicEvents.activeRuns.decrement();
+			BasicEvents.instructions.add(ctx.steps - steps);
+			BasicEvents.inputs.add(ctx.inputs - inputs);
+
+			if (event.shouldCommit()) {
+				event.line = pc < lines.length ? lines[pc] : -1;
+				event.mode = mode(ctx).name();
+				event.instructions = ctx.steps - steps;
+				event.commit();
+			}
+
+			ctx.flush();
+		}
+	}
+
+	/**
+	 * @return The mode runs with the given context use. Checked arithmetic, profiling, execution traces and
+	 * {@link BasicEvents.Gosub} events need the tree walker, and so do programs the JIT can not compile.
+	 */
+	private ExecutionMode mode(ExecutionContext ctx) {
+		if (ctx.checkedArithmetic || ctx.profiler != null || ctx.trace != null || BasicEvents.GOSUB.isEnabled()) {
+			return ExecutionMode.TREE_WALKER;
+		}
+
+		if (ctx.mode == ExecutionMode.JIT && jit() == null) {
+			return ExecutionMode.TREE_WALKER;
+		}
+
+		return ctx.mode;
+	}
+
+	private void run(int pc, ExecutionContext ctx, ReturnStack stack) {
+		Instruction[] linked = null;
+
+		if (optimizer != null) {
+			optimizer.reach(pc);
+		} else {
+			linked = linked();
+		}
+
+		if (ctx.checkedArithmetic) {
+			var checked = checked();
+
+			if (ctx.profiler != null) {
+				profile(pc, ctx, stack, ctx.profiler, checked);
+			} else if (ctx.trace != null) {
+				record(pc, ctx, stack, ctx.trace, checked);
+			} else if (BasicEvents.GOSUB.isEnabled()) {
+				trace(pc, ctx, stack, checked);
+			} else {
+				run(pc, ctx, stack, checked);
+			}
+
+			return;
+		}
+
+		if (ctx.profiler != null) {
+			profile(pc, ctx, stack, ctx.profiler, null);
+			return;
+		}
+
+		if (ctx.trace != null) {
+			record(pc, ctx, stack, ctx.trace, null);
+			return;
+		}
+
+		if (BasicEvents.GOSUB.isEnabled()) {
+			trace(pc, ctx, stack, linked);
+			return;
+		}
+
+		if (ctx.mode == ExecutionMode.BYTECODE) {
+			(stack.size == 0 ? bytecode(pc) : bytecode()).run(pc, ctx, stack);
+			return;
+		}
+
+		if (ctx.mode == ExecutionMode.JIT) {
+			var jit = jit();
+
+			if (jit != null) {
+				jit.run(ctx, stack, pc);
+				return;
+			}
+		}
+
+		if (linked != null) {
+			// A RETURN to a GOSUB of an earlier run could skip the definitions the analysis relies on
+			run(pc, ctx, stack, stack.size == 0 ? withDefinedReads(pc, linked) : linked);
+			return;
+		}
+
+		// Optimised programs parse and link lines as they reach them
+		while (pc < program.size()) {
+			var upInstruction = program.get(pc);
+
+			if (upInstruction == null) {
+				return;
+			}
+
+			if (ctx.steps >= ctx.nextCheck) {
+				ctx.safepoint(pc);
+			}
+
+			ctx.steps++;
+			var instruction = upInstruction.linked;
+
+			if (instruction == null) {
+				instruction = link(pc);
+			}
+
+			try {
+				var next = instruction.run(ctx);
+
+				switch (next) {
+					case Integer.MAX_VALUE -> {
+						pc += 1;
+					}
+					case Integer.MIN_VALUE -> pc = stack.pop(pc);
+					default -> {
+						if (next >= 0) {
+							pc = next;
+						} else {
+							stack.push(pc + 1);
+							pc = -next - 1;
+						}
+					}
+				}
+			} catch (StopRun stop) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The tree walker over the published instructions of an unoptimised program
+	 */
+	private static void run(int pc, ExecutionContext ctx, ReturnStack stack, Instruction[] linked) {
+		try {
+			while (pc < linked.length) {
+				if (ctx.steps >= ctx.nextCheck) {
+					ctx.safepoint(pc);
+				}
+
+				ctx.steps++;
+				var next = linked[pc].run(ctx);
+
+				switch (next) {
+					case Integer.MAX_VALUE -> {
+						pc += 1;
+					}
+					case Integer.MIN_VALUE -> pc = stack.pop(pc);
+					default -> {
+						if (next >= 0) {
+							pc = next;
+						} else {
+							stack.push(pc + 1);
+							pc = -next - 1;
+						}
+					}
+				}
+			}
+		} catch (StopRun stop) {
+			// END
+		}
+	}
+
+	/**
+	 * The tree walker with a {@link Profiler}, running every line on its own instead of using
+	 * {@link Superinstruction}s of more than one line so that each one is counted
+	 *
+	 * @param instructions The instructions to run, or null to run the parsed ones
+	 */
+	private void profile(int pc, ExecutionContext ctx, ReturnStack stack, Profiler profiler, Instruction[] instructions) {
+		profiler.start(lines);
+
+		try {
+			while (pc < program.size()) {
+				if (ctx.steps >= ctx.nextCheck) {
+					ctx.safepoint(pc);
+				}
+
+				ctx.steps++;
+				profiler.count(pc);
+				var instruction = instructions != null ? instructions[pc] : program.get(pc).get(lineMappings, symbols);
+				var next = instruction.run(ctx);
+
+				switch (next) {
+					case Integer.MAX_VALUE -> {
+						pc += 1;
+					}
+					case Integer.MIN_VALUE -> {
+						pc = stack.pop(pc);
+						profiler.exit();
+					}
+					default -> {
+						if (next >= 0) {
+							pc = next;
+						} else {
+							stack.push(pc + 1);
+							pc = -next - 1;
+							profiler.enter(pc);
+						}
+					}
+				}
+			}
+		} catch (StopRun stop) {
+			// END
+		} finally {
+			profiler.stop();
+		}
+	}
+
+	/**
+	 * The tree walker recording every line in an {@link ExecutionTrace}, which is attached to the exception
+	 * if the run fails
+	 *
+	 * @param instructions The instructions to run, or null to run the parsed ones
+	 */
+	private void record(int pc, ExecutionContext ctx, ReturnStack stack, ExecutionTrace trace, Instruction[] instructions) {
+		trace.start();
+
+		try {
+			while (pc < program.size()) {
+				if (ctx.steps >= ctx.nextCheck) {
+					ctx.safepoint(pc);
+				}
+
+				ctx.steps++;
+				trace.record(pc);
+				var instruction = instructions != null ? instructions[pc] : program.get(pc).get(lineMappings, symbols);
+				var next = instruction.run(ctx);
+
+				if (instruction instanceof Instruction.Let let) {
+					trace.set(let.slot, ctx.values[let.slot]);
+				}
+
+				switch (next) {
+					case Integer.MAX_VALUE -> {
+						pc += 1;
+					}
+					case Integer.MIN_VALUE -> pc = stack.pop(pc);
+					default -> {
+						if (next >= 0) {
+							pc = next;
+						} else {
+							stack.push(pc + 1);
+							pc = -next - 1;
+						}
+					}
+				}
+			}
+		} catch (StopRun stop) {
+			// END
+		} catch (RuntimeException e) {
+			trace.attach(e, lines, symbols);
+			throw e;
+		}
+	}
+
+	/**
+	 * The tree walker emitting a {@link BasicEvents.Gosub} event for every subroutine which takes longer than
+	 * the threshold of the event
+	 *
+	 * @param instructions The instructions to run, or null to run the parsed ones
+	 */
+	private void trace(int pc, ExecutionContext ctx, ReturnStack stack, Instruction[] instructions) {
+		// The events of the subroutines entered in this run which did not return yet
+		var frames = new BasicEvents.Gosub[16];
+		var depth = 0;
+
+		try {
+			while (pc < program.size()) {
+				if (ctx.steps >= ctx.nextCheck) {
+					ctx.safepoint(pc);
+				}
+
+				ctx.steps++;
+				var instruction = instructions != null ? instructions[pc] : program.get(pc).get(lineMappings, symbols);
+				var next = instruction.run(ctx);
+
+				switch (next) {
+					case Integer.MAX_VALUE -> {
+						pc += 1;
+					}
+					case Integer.MIN_VALUE -> {
+						pc = stack.pop(pc);
+
+						// Returns to a GOSUB from an earlier run have no event
+						if (depth > 0) {
+							frames[--depth].commit();
+							frames[depth] = null;
+						}
+					}
+					default -> {
+						if (next >= 0) {
+							pc = next;
+						} else {
+							stack.push(pc + 1);
+							var event = new BasicEvents.Gosub();
+							event.begin();
+							event.caller = lines[pc];
+							pc = -next - 1;
+							event.line = lines[pc];
+							event.depth = stack.size;
+
+							if (depth == frames.length) {
+								frames = Arrays.copyOf(frames, depth * 2);
+							}
+
+							frames[depth++] = event;
+						}
+					}
+				}
+			}
+		} catch (StopRun stop) {
+			// END
+		} finally {
+			// Subroutines which did not return end with the run
+			while (depth > 0) {
+				frames[--depth].commit();
+			}
+		}
+	}
+
+	/**
+	 * @return A 64-bit FNV-1a hash of the line numbers and source code of the program, the same in every
+	 * process
+	 */
+	long hash() {
+		var res = hash;
+
+		if (res == 0) {
+			res = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < lines.length; i++) {
+				res = (res ^ lines[i]) * 0x100000001b3L;
+				var source = program.get(i).source;
+
+				for (int j = 0; j < source.length(); j++) {
+					res = (res ^ source.charAt(j)) * 0x100000001b3L;
+				}
+
+				res = (res ^ '\n') * 0x100000001b3L;
+			}
+
+			// 0 means not computed yet
+			hash = res = res == 0 ? 1 : res;
+		}
+
+		return res;
+	}
+
+	/**
+	 * @return The instructions of every line with all calculations checked for overflow. Increments are not
+	 * fused with the following IF, as those superinstructions wrap around.
+	 */
+	private Instruction[] checked() {
+		var res = checked;
+
+		if (res == null) {
+			synchronized (this) {
+				res = checked;
+
+				if (res == null) {
+					res = new Instruction[program.size()];
+
+					for (int i = 0; i < res.length; i++) {
+						try {
+							var instruction = checked(program.get(i).get(lineMappings, symbols), lines[i]);
+							res[i] = Superinstruction.fuse(i, instruction, null);
+						} catch (RuntimeException | AssertionError e) {
+							res[i] = new Unparsable(program.get(i), lineMappings, symbols);
+						}
+					}
+
+					checked = res;
+				}
+			}
+		}
+
+		return res;
+	}
+
+	private static Instruction checked(Instruction instruction, int line) {
+		return switch (instruction) {
+			case Instruction.Let let when let.value instanceof Expression.Calculation -> {
+				var res = new Instruction.Let();
+				res.name = let.name;
+				res.slot = let.slot;
+				res.value = Expression.Checked.of(let.value, line);
+				yield res;
+			}
+			case Instruction.Print print when print.value instanceof Expression.Calculation -> {
+				var res = new Instruction.Print();
+				res.value = Expression.Checked.of(print.value, line);
+				yield res;
+			}
+			case Instruction.If if_ -> {
+				var res = new Instruction.If();
+				res.left = Expression.Checked.of(if_.left, line);
+				res.cmp = if_.cmp;
+				res.right = Expression.Checked.of(if_.right, line);
+				res.destination = if_.destination;
+				yield res;
+			}
+			default -> instruction;
+		};
+	}
+
+	private Bytecode bytecode() {
+		var res = bytecode;
+
+		if (res == null) {
+			synchronized (this) {
+				res = bytecode;
+
+				if (res == null) {
+					res = bytecode = Bytecode.compile(program, lineMappings, symbols, null);
+				}
+			}
+		}
+
+		return res;
+	}
+
+	/**
+	 * @param start The program index runs start from
+	 * @return The bytecode with every read which can not fail in runs from the given index unchecked,
+	 * compiled on the first run from it. Only valid for runs starting with an empty GOSUB stack.
+	 */
+	private Bytecode bytecode(int start) {
+		var cached = definedBytecode.get(start);
+
+		if (cached != null) {
+			return cached;
+		}
+
+		if (definedBytecode.size() >= DEFINED_READS_STARTS) {
+			return bytecode();
+		}
+
+		return definedBytecode.computeIfAbsent(start, ignored ->
+				Bytecode.compile(program, lineMappings, symbols, new DefUseAnalysis(this::parsed, lines, symbols, start)));
+	}
+
+	/**
+	 * @return The JIT compiled program, or null if it can not be compiled
+	 */
+	private JitProgram jit() {
+		var res = jit;
+
+		if (res == null && !jitUnsupported) {
+			synchronized (this) {
+				res = jit;
+
+				if (res == null && !jitUnsupported) {
+					res = jit = JitCompiler.compile(program, lineMappings, symbols);
+					jitUnsupported = res == null;
+				}
+			}
+		}
+
+		return res;
+	}
+
+	/**
+	 * Parse the instruction at the given index, fusing it with the next one if they form a
+	 * {@link Superinstruction}. The next line keeps its own instruction, so jumping to it still works.
+	 */
+	private Instruction link(int pc) {
+		var upInstruction = program.get(pc);
+		var instruction = upInstruction.get(lineMappings, symbols);
+		Instruction next = null;
+
+		if (instruction instanceof Instruction.Let && pc + 1 < program.size()) {
+			try {
+				next = program.get(pc + 1).get(lineMappings, symbols);
+			} catch (RuntimeException | AssertionError ignored) {
+				// The syntax error is reported if the next line is executed
+			}
+		}
+
+		var res = Superinstruction.fuse(pc, instruction, next);
+		upInstruction.linked = res;
+		return res;
+	}
+}
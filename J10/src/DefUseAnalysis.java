@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * A dataflow analysis over the control flow graph of a program, built from GOTO, IF, GOSUB and RETURN. It
+ * finds the variables which are set by a LET or an INPUT on every path from a start line to every reachable
+ * line. Reads of these variables can not fail, so {@link #markDefined(int, Instruction)} marks them to be
+ * read without a check, and every other read is reported by {@link #warnings()}.
+ * <br>
+ * A RETURN may go back to any GOSUB, so the variables set after a GOSUB returns are the ones set before it,
+ * and the ones set at every reachable RETURN. This only holds for runs which start with an empty GOSUB
+ * stack. Lines which fail to parse end every path through them, since running them fails.
+ */
+class DefUseAnalysis {
+	private final Instruction[] instructions;
+	private final int[] lines;
+	private final SymbolTable symbols;
+	/**
+	 * The variables set before every program index on all paths from the start, null for unreachable lines
+	 */
+	private final BitSet[] defined;
+
+	/**
+	 * @param parsed The parsed instruction of every program index, null if it failed to parse, only called
+	 *               for the reachable lines
+	 * @param lines  The line number of every program index
+	 * @param start  The program index of the start line
+	 */
+	DefUseAnalysis(IntFunction<Instruction> parsed, int[] lines, SymbolTable symbols, int start) {
+		this.instructions = new Instruction[lines.length];
+		this.lines = lines;
+		this.symbols = symbols;
+		defined = new BitSet[lines.length];
+
+		var pending = new BitSet();
+		// The indices of the reachable GOSUBs, and the variables set at every reachable RETURN
+		var gosubs = new BitSet();
+		BitSet returned = null;
+
+		if (start < lines.length) {
+			defined[start] = new BitSet();
+			pending.set(start);
+		}
+
+		for (int pc = pending.nextSetBit(0); pc >= 0; pc = pending.nextSetBit(0)) {
+			pending.clear(pc);
+
+			if (instructions[pc] == null) {
+				instructions[pc] = parsed.apply(pc);
+
+				if (instructions[pc] == null) {
+					continue;
+				}
+			}
+
+			var instruction = instructions[pc];
+			var out = (BitSet) defined[pc].clone();
+
+			switch (instruction) {
+				case Instruction.Let let -> out.set(let.slot);
+				case Instruction.Input input -> out.set(input.slot);
+				default -> {
+				}
+			}
+
+			switch (instruction) {
+				case Instruction.Goto goto_ -> flow(goto_.destination, out, pending);
+				case Instruction.If if_ -> {
+					flow(pc + 1, out, pending);
+					flow(if_.destination, out, pending);
+				}
+				case Instruction.Gosub gosub -> {
+					gosubs.set(pc);
+					flow(-gosub.destination - 1, out, pending);
+
+					if (returned != null) {
+						out.or(returned);
+						flow(pc + 1, out, pending);
+					}
+				}
+				case Instruction.Return ignored -> {
+					var before = returned == null ? -1 : returned.cardinality();
+
+					if (returned == null) {
+						returned = out;
+					} else {
+						returned.and(out);
+					}
+
+					if (returned.cardinality() != before) {
+						// Every GOSUB continues with fewer variables set
+						pending.or(gosubs);
+					}
+				}
+				case Instruction.End ignored -> {
+				}
+				default -> flow(pc + 1, out, pending);
+			}
+		}
+	}
+
+	/**
+	 * Merge the variables set on one more path to the given index
+	 */
+	private void flow(int index, BitSet state, BitSet pending) {
+		if (index >= defined.length) {
+			return;
+		}
+
+		if (defined[index] == null) {
+			defined[index] = (BitSet) state.clone();
+			pending.set(index);
+			return;
+		}
+
+		var before = defined[index].cardinality();
+		defined[index].and(state);
+
+		if (defined[index].cardinality() != before) {
+			pending.set(index);
+		}
+	}
+
+	/**
+	 * @return Whether the line at the given index is reachable from the start
+	 */
+	boolean reachable(int index) {
+		return defined[index] != null;
+	}
+
+	/**
+	 * @return The instruction at the given index, with every read of a variable which is always set marked
+	 * as {@link Expression.Variable#defined}, or the instruction itself if there is no such read
+	 */
+	Instruction markDefined(int index, Instruction instruction) {
+		var defined = this.defined[index];
+
+		if (defined == null) {
+			return instruction;
+		}
+
+		return switch (instruction) {
+			case Instruction.Let let -> {
+				var value = markDefined(let.value, defined);
+
+				if (value == let.value) {
+					yield let;
+				}
+
+				var res = new Instruction.Let();
+				res.name = let.name;
+				res.slot = let.slot;
+				res.value = value;
+				yield res;
+			}
+			case Instruction.Print print -> {
+				var value = markDefined(print.value, defined);
+
+				if (value == print.value) {
+					yield print;
+				}
+
+				var res = new Instruction.Print();
+				res.value = value;
+				yield res;
+			}
+			case Instruction.If if_ -> {
+				var left = markDefined(if_.left, defined);
+				var right = markDefined(if_.right, defined);
+
+				if (left == if_.left && right == if_.right) {
+					yield if_;
+				}
+
+				var res = new Instruction.If();
+				res.left = left;
+				res.cmp = if_.cmp;
+				res.right = right;
+				res.destination = if_.destination;
+				yield res;
+			}
+			default -> instruction;
+		};
+	}
+
+	private static Expression markDefined(Expression expression, BitSet defined) {
+		return switch (expression) {
+			case Expression.Variable v when defined.get(v.slot) && !v.defined -> v.defined();
+			case Expression.Calculation calc -> {
+				var left = markDefined(calc.left, defined);
+				var right = markDefined(calc.right, defined);
+				yield left == calc.left && right == calc.right ? calc : Expression.Calculation.of(left, calc.operand, right);
+			}
+			default -> expression;
+		};
+	}
+
+	/**
+	 * @return Every read of a variable which may not be set, in program order, as
+	 * {@code line 20: variable 'x' may not be defined}
+	 */
+	List<String> warnings() {
+		var res = new ArrayList<String>();
+		var reads = new BitSet();
+
+		for (int i = 0; i < instructions.length; i++) {
+			if (defined[i] == null || instructions[i] == null) {
+				continue;
+			}
+
+			reads.clear();
+
+			switch (instructions[i]) {
+				case Instruction.Let let -> reads(let.value, reads);
+				case Instruction.Print print -> reads(print.value, reads);
+				case Instruction.If if_ -> {
+					reads(if_.left, reads);
+					reads(if_.right, reads);
+				}
+				default -> {
+				}
+			}
+
+			reads.andNot(defined[i]);
+
+			for (int slot = reads.nextSetBit(0); slot >= 0; slot = reads.nextSetBit(slot + 1)) {
+				res.add("line " + lines[i] + ": variable '" + symbols.name(slot) + "' may not be defined");
+			}
+		}
+
+		return res;
+	}
+
+	private static void reads(Expression expression, BitSet reads) {
+		switch (expression) {
+			case Expression.Variable v -> reads.set(v.slot);
+			case Expression.Calculation calc -> {
+				reads(calc.left, reads);
+				reads(calc.right, reads);
+			}
+			default -> {
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+class ExecutionContext {
+	/**
+	 * The number of buffered characters after which the output is flushed
+	 */
+	static final int BUFFER_SIZE = 8192;
+	/**
+	 * The number of lines between checks for cancellation and the deadline
+	 */
+	static final int CHECK_INTERVAL = 1024;
+
+	ProgrammableCalculatorInterface.LineReader stdin;
+	ProgrammableCalculatorInterface.LinePrinter stdout;
+	/**
+	 * The sink of buffered output, null if every PRINT goes directly to {@link #stdout}
+	 */
+	BulkPrinter bulkStdout;
+	/**
+	 * Lines printed since the last {@link #flush()}, reused for the whole run
+	 */
+	final StringBuilder buffer = new StringBuilder();
+	final SymbolTable symbols;
+	final ReturnStack stack = new ReturnStack();
+	ExecutionMode mode = ExecutionMode.TREE_WALKER;
+	/**
+	 * The profiler of the runs using this context, null if they are not profiled
+	 */
+	Profiler profiler = null;
+	/**
+	 * The trace of the last lines executed by the current run, null if runs are not traced
+	 */
+	ExecutionTrace trace = null;
+	/**
+	 * Whether calculations fail with an {@link ArithmeticOverflowError} instead of wrapping around
+	 */
+	boolean checkedArithmetic = false;
+	/**
+	 * The number of lines executed so far, in all runs using this context
+	 */
+	long steps = 0;
+	/**
+	 * The number of INPUTs executed so far, in all runs using this context
+	 */
+	long inputs = 0;
+	/**
+	 * The maximum number of lines executed by one run
+	 */
+	long maxSteps = Long.MAX_VALUE;
+	/**
+	 * The maximum duration of one run in nanoseconds, 0 for no limit
+	 */
+	long timeout = 0;
+	volatile boolean cancelled = false;
+	/**
+	 * The value of {@link #steps} at which the next line has to call {@link #safepoint(int)} first
+	 */
+	long nextCheck = 0;
+	private long stepLimit = Long.MAX_VALUE;
+	private long deadline = 0;
+	/**
+	 * The receiver of snapshots, null if snapshots are disabled
+	 */
+	Consumer<Snapshot> snapshots = null;
+	/**
+	 * The number of lines between two snapshots, 0 to only take them when requested
+	 */
+	long snapshotInterval = 0;
+	volatile boolean snapshotRequested = false;
+	/**
+	 * The hash of the running program, only set if snapshots are enabled
+	 */
+	long programHash = 0;
+	private long nextSnapshot = Long.MAX_VALUE;
+	int[] values = new int[64];
+	/**
+	 * A bitmap of the slots in {@link #values} which have been set
+	 */
+	long[] defined = new long[1];
+
+	ExecutionContext(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	int getVar(int slot) {
+		if (slot >= values.length || (defined[slot >>> 6] & (1L << slot)) == 0) {
+			throw new ExpressionValueException("no variable '" + symbols.name(slot) + "' defined");
+		}
+
+		return values[slot];
+	}
+
+	/**
+	 * Read a variable
+	 *
+	 * @param defined Whether {@link DefUseAnalysis} proved that the variable is set. Such reads are a plain
+	 *                array load, the proof is only checked when assertions are enabled.
+	 */
+	int getVar(int slot, boolean defined) {
+		if (defined) {
+			assert slot < values.length && (this.defined[slot >>> 6] & (1L << slot)) != 0 : "Variable '" + symbols.name(slot) + "' was proven to be set, but is not";
+			return values[slot];
+		}
+
+		return getVar(slot);
+	}
+
+	void setVar(int slot, int value) {
+		if (slot >= values.length) {
+			var capacity = (slot + 64) & ~63;
+			values = Arrays.copyOf(values, capacity);
+			defined = Arrays.copyOf(defined, capacity >>> 6);
+		}
+
+		values[slot] = value;
+		defined[slot >>> 6] |= 1L << slot;
+	}
+
+	int readInt() {
+		flush();
+		inputs++;
+
+		if (!BasicEvents.INPUT_STALL.isEnabled()) {
+			return read();
+		}
+
+		var event = new BasicEvents.InputStall();
+		event.begin();
+
+		try {
+			return read();
+		} finally {
+			event.commit();
+		}
+	}
+
+	private int read() {
+		if (stdin instanceof IntLineReader reader) {
+			return reader.readInt();
+		}
+
+		return Integer.parseInt(stdin.readLine());
+	}
+
+	void print(String line) {
+		if (bulkStdout == null) {
+			stdout.printLine(line);
+			return;
+		}
+
+		buffer.append(line).append('\n');
+
+		if (buffer.length() >= BUFFER_SIZE) {
+			flush();
+		}
+	}
+
+	void print(int value) {
+		if (bulkStdout == null) {
+			stdout.printLine(Integer.toString(value));
+			return;
+		}
+
+		buffer.append(value).append('\n');
+
+		if (buffer.length() >= BUFFER_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the buffered output to {@link #bulkStdout}
+	 */
+	void flush() {
+		if (!buffer.isEmpty()) {
+			bulkStdout.printLines(buffer);
+			buffer.setLength(0);
+		}
+	}
+
+	/**
+	 * Start the limits of a new run
+	 */
+	void start() {
+		stepLimit = maxSteps > Long.MAX_VALUE - steps ? Long.MAX_VALUE : steps + maxSteps;
+		deadline = System.nanoTime() + timeout;
+		nextCheck = steps;
+		nextSnapshot = nextSnapshot();
+	}
+
+	private long nextSnapshot() {
+		return snapshotInterval == 0 || snapshotInterval > Long.MAX_VALUE - steps ? Long.MAX_VALUE : steps + snapshotInterval;
+	}
+
+	/**
+	 * Check whether the run has to stop before executing a line, called once {@link #steps} reaches
+	 * {@link #nextCheck}
+	 *
+	 * @param index The program index of the line
+	 * @return The new value of {@link #nextCheck}
+	 * @throws RunStoppedError If the run has to stop
+	 */
+	long safepoint(int index) {
+		// Taken before stopping, so that a snapshot requested together with a cancellation is not lost
+		if (snapshots != null && (snapshotRequested || steps >= nextSnapshot)) {
+			snapshotRequested = false;
+			flush();
+			snapshots.accept(Snapshot.take(this, programHash, index));
+			nextSnapshot = nextSnapshot();
+		}
+
+		if (cancelled) {
+			cancelled = false;
+			throw new RunStoppedError(stack.lines[index], RunStoppedError.Reason.CANCELLED);
+		} else if (Thread.currentThread().isInterrupted()) {
+			throw new RunStoppedError(stack.lines[index], RunStoppedError.Reason.INTERRUPTED);
+		} else if (timeout != 0 && System.nanoTime() - deadline >= 0) {
+			throw new RunStoppedError(stack.lines[index], RunStoppedError.Reason.TIMEOUT);
+		} else if (steps >= stepLimit) {
+			throw new RunStoppedError(stack.lines[index], RunStoppedError.Reason.INSTRUCTION_LIMIT);
+		}
+
+		nextCheck = Math.min(Math.min(steps + CHECK_INTERVAL, stepLimit), nextSnapshot);
+		return nextCheck;
+	}
+}
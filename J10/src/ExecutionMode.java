@@ -0,0 +1,17 @@
+enum ExecutionMode {
+	/**
+	 * Run the parsed instructions directly
+	 */
+	TREE_WALKER,
+	/**
+	 * Compile the program to a flat opcode stream before running it, with one opcode per comparison and
+	 * unchecked reads of the variables proven to be set, see {@link DefUseAnalysis}. About as fast as the
+	 * {@link #TREE_WALKER} on tight loops, faster on long programs without loops.
+	 */
+	BYTECODE,
+	/**
+	 * Translate the program to a JVM class before running it, falling back to {@link #TREE_WALKER} for
+	 * programs which can not be translated or whose class would be too large for HotSpot to compile
+	 */
+	JIT,
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+
+/**
+ * A ring buffer of the last lines executed by a run, and the values set by the LETs among them, see
+ * {@link ProgrammableCalculator#setExecutionTrace(int, boolean)}. Recording a line only writes to
+ * preallocated arrays. When a traced run fails, the trace is added to its exception as a suppressed
+ * {@link ExecutionTraceDump}.
+ */
+class ExecutionTrace {
+	/**
+	 * The program index of every recorded line, oldest first starting at {@link #position} once the buffer
+	 * is full
+	 */
+	private final int[] indices;
+	/**
+	 * The slot and value set by every recorded line, -1 and 0 for lines other than LET, null if values are
+	 * not recorded
+	 */
+	private final int[] slots;
+	private final int[] values;
+	private int position = 0;
+	private long count = 0;
+
+	/**
+	 * @param size   The number of lines to keep
+	 * @param values Whether to keep the values set by LETs
+	 */
+	ExecutionTrace(int size, boolean values) {
+		this.indices = new int[size];
+		this.slots = values ? new int[size] : null;
+		this.values = values ? new int[size] : null;
+	}
+
+	/**
+	 * Start a run, forgetting the lines of earlier runs
+	 */
+	void start() {
+		position = 0;
+		count = 0;
+	}
+
+	/**
+	 * Record a line, before it is executed
+	 *
+	 * @param index The program index of the line
+	 */
+	void record(int index) {
+		indices[position] = index;
+
+		if (slots != null) {
+			slots[position] = -1;
+		}
+
+		position = position + 1 == indices.length ? 0 : position + 1;
+		count++;
+	}
+
+	/**
+	 * Record the value set by the last recorded line, after it was executed
+	 */
+	void set(int slot, int value) {
+		if (slots == null) {
+			return;
+		}
+
+		var last = position == 0 ? indices.length - 1 : position - 1;
+		slots[last] = slot;
+		values[last] = value;
+	}
+
+	/**
+	 * Add the recorded lines to the exception which ended the run
+	 *
+	 * @param lines   The line number of every program index
+	 * @param symbols The names of the variables
+	 */
+	void attach(Throwable e, int[] lines, SymbolTable symbols) {
+		var size = (int) Math.min(count, indices.length);
+		var start = count > indices.length ? position : 0;
+		var res = new int[size];
+		var descriptions = new ArrayList<String>(size);
+
+		for (int i = 0; i < size; i++) {
+			var j = (start + i) % indices.length;
+			res[i] = lines[indices[j]];
+
+			if (slots != null && slots[j] >= 0) {
+				descriptions.add("line " + res[i] + ": " + symbols.name(slots[j]) + " = " + values[j]);
+			} else {
+				descriptions.add("line " + res[i]);
+			}
+		}
+
+		e.addSuppressed(new ExecutionTraceDump(res, count, descriptions));
+	}
+}
@@ -0,0 +1,23 @@
+import java.util.List;
+
+class ExecutionTraceDump extends RuntimeException {
+	/**
+	 * The numbers of the last lines executed by the failed run, oldest first, ending with the failed line
+	 */
+	final int[] lines;
+
+	ExecutionTraceDump(int[] lines, long executed, List<String> descriptions) {
+		super(message(lines, executed, descriptions), null, false, false);
+		this.lines = lines;
+	}
+
+	private static String message(int[] lines, long executed, List<String> descriptions) {
+		var res = new StringBuilder().append("Last ").append(lines.length).append(" of ").append(executed).append(" lines executed");
+
+		for (var description : descriptions) {
+			res.append('\n').append(description);
+		}
+
+		return res.toString();
+	}
+}
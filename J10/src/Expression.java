@@ -0,0 +1,403 @@
+import java.util.Locale;
+
+interface Expression {
+	static Expression parse(String expr, SymbolTable symbols) {
+		if (PrecompiledRegexes.VARIABLE.matcher(expr).matches()) {
+			return Variable.parse(expr, symbols);
+		} else if (PrecompiledRegexes.STR.matcher(expr).matches()) {
+			return Str.parse(expr);
+		} else if (PrecompiledRegexes.INT.matcher(expr).matches()) {
+			return Int.parse(expr);
+		} else if (PrecompiledRegexes.CALCULATION.matcher(expr).matches()) {
+			return Calculation.parse(expr, symbols);
+		}
+
+		throw new SyntaxError(expr);
+	}
+
+	int intValue(ExecutionContext ctx);
+
+	String stringValue(ExecutionContext ctx);
+
+	/**
+	 * Print the value without converting it to a string first
+	 */
+	default void print(ExecutionContext ctx) {
+		ctx.print(intValue(ctx));
+	}
+
+	class Variable implements Expression {
+		String name;
+		int slot;
+		/**
+		 * Whether the variable is always set when it is read, see {@link DefUseAnalysis}
+		 */
+		boolean defined = false;
+
+		static Variable parse(String expr, SymbolTable symbols) {
+			var pattern = PrecompiledRegexes.VARIABLE;
+
+			try {
+				var matcher = pattern.matcher(expr);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				var res = new Variable();
+				res.name = matcher.group("name").toLowerCase(Locale.ROOT);
+				res.slot = symbols.slot(res.name);
+				return res;
+			} catch (Exception e) {
+				throw new SyntaxError(expr);
+			}
+		}
+
+		public int intValue(ExecutionContext ctx) {
+			return ctx.getVar(slot, defined);
+		}
+
+		/**
+		 * @return A copy of the variable which is read without checking that it is set
+		 */
+		Variable defined() {
+			var res = new Variable();
+			res.name = name;
+			res.slot = slot;
+			res.defined = true;
+			return res;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		public String stringValue(ExecutionContext ctx) {
+			return Integer.toString(intValue(ctx));
+		}
+	}
+
+	class Str implements Expression {
+		final String content;
+		/**
+		 * The content converted to an int once, valid if {@link #numeric}
+		 */
+		final int value;
+		final boolean numeric;
+
+		Str(String content) {
+			this.content = content;
+			var value = 0;
+			var numeric = true;
+
+			try {
+				value = Integer.parseInt(content);
+			} catch (NumberFormatException e) {
+				numeric = false;
+			}
+
+			this.value = value;
+			this.numeric = numeric;
+		}
+
+		static Str parse(String expr) {
+			var pattern = PrecompiledRegexes.STR;
+
+			try {
+				var matcher = pattern.matcher(expr);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				return new Str(matcher.group("content"));
+			} catch (Exception e) {
+				throw new SyntaxError(expr);
+			}
+		}
+
+		public int intValue(ExecutionContext ctx) {
+			if (!numeric) {
+				throw new ExpressionValueException("string '" + content + "' can not be converted to an integer");
+			}
+
+			return value;
+		}
+
+		public String stringValue(ExecutionContext ctx) {
+			return content;
+		}
+
+		@Override
+		public void print(ExecutionContext ctx) {
+			ctx.print(content);
+		}
+
+		@Override
+		public String toString() {
+			return '"' + content + '"';
+		}
+	}
+
+	class Int implements Expression {
+		int value;
+
+		static Int parse(String expr) {
+			var pattern = PrecompiledRegexes.INT;
+
+			try {
+				var matcher = pattern.matcher(expr);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				var res = new Int();
+				res.value = Integer.parseInt(matcher.group("value"));
+				return res;
+			} catch (Exception e) {
+				throw new SyntaxError(expr);
+			}
+		}
+
+		public int intValue(ExecutionContext ctx) {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return Integer.toString(value);
+		}
+
+		public String stringValue(ExecutionContext ctx) {
+			return Integer.toString(intValue(ctx));
+		}
+	}
+
+	class Calculation implements Expression {
+		Expression left;
+		Operand operand;
+		Expression right;
+
+		static Calculation parse(String expr, SymbolTable symbols) {
+			var pattern = PrecompiledRegexes.CALCULATION;
+
+			try {
+				var matcher = pattern.matcher(expr);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				var res = new Calculation();
+				res.left = Expression.parse(matcher.group("left"), symbols);
+				res.right = Expression.parse(matcher.group("right"), symbols);
+
+				switch (matcher.group("op")) {
+					case "+": {
+						return of(res.left, Operand.Add, res.right);
+					}
+					case "-": {
+						return of(res.left, Operand.Sub, res.right);
+					}
+					case "*": {
+						return of(res.left, Operand.Mul, res.right);
+					}
+					case "/": {
+						return of(res.left, Operand.Div, res.right);
+					}
+					default: {
+						throw new SyntaxError(expr, "Unknown operand '" + matcher.group("op") + "'");
+					}
+				}
+			} catch (SyntaxError e) {
+				throw new SyntaxError(expr, e.getMessage());
+			} catch (Exception e) {
+				throw new SyntaxError(expr);
+			}
+		}
+
+		/**
+		 * @return A calculation specialised for the types of its operands
+		 */
+		static Calculation of(Expression left, Operand operand, Expression right) {
+			var res = switch (left) {
+				case Variable l when right instanceof Int r -> new VariableConstant(l.slot, l.defined, r.value);
+				case Int l when right instanceof Variable r -> new ConstantVariable(l.value, r.slot, r.defined);
+				case Variable l when right instanceof Variable r -> new VariableVariable(l.slot, l.defined, r.slot, r.defined);
+				default -> new Calculation();
+			};
+
+			res.left = left;
+			res.operand = operand;
+			res.right = right;
+			return res;
+		}
+
+		public int intValue(ExecutionContext ctx) {
+			return operand.calc(left, right, ctx);
+		}
+
+		@Override
+		public String toString() {
+			return left + " " + operand.symbol + " " + right;
+		}
+
+		public String stringValue(ExecutionContext ctx) {
+			return Integer.toString(intValue(ctx));
+		}
+
+		enum Operand {
+			Add("+") {
+				@Override
+				int calc(Expression left, Expression right, ExecutionContext ctx) {
+					return left.intValue(ctx) + right.intValue(ctx);
+				}
+			}, Sub("-") {
+				@Override
+				int calc(Expression left, Expression right, ExecutionContext ctx) {
+					return left.intValue(ctx) - right.intValue(ctx);
+				}
+			}, Mul("*") {
+				@Override
+				int calc(Expression left, Expression right, ExecutionContext ctx) {
+					return left.intValue(ctx) * right.intValue(ctx);
+				}
+			}, Div("/") {
+				@Override
+				int calc(Expression left, Expression right, ExecutionContext ctx) {
+					return left.intValue(ctx) / right.intValue(ctx);
+				}
+			};
+
+			final String symbol;
+
+			Operand(String symbol) {
+				this.symbol = symbol;
+			}
+
+			abstract int calc(Expression left, Expression right, ExecutionContext ctx);
+
+			/**
+			 * Apply the operator to two values, a switch instead of a virtual call
+			 */
+			int apply(int left, int right) {
+				return switch (this) {
+					case Add -> left + right;
+					case Sub -> left - right;
+					case Mul -> left * right;
+					case Div -> left / right;
+				};
+			}
+		}
+	}
+
+	/**
+	 * {@code v op c}
+	 */
+	final class VariableConstant extends Calculation {
+		private final int slot;
+		private final boolean defined;
+		private final int value;
+
+		private VariableConstant(int slot, boolean defined, int value) {
+			this.slot = slot;
+			this.defined = defined;
+			this.value = value;
+		}
+
+		@Override
+		public int intValue(ExecutionContext ctx) {
+			return operand.apply(ctx.getVar(slot, defined), value);
+		}
+	}
+
+	/**
+	 * {@code c op v}
+	 */
+	final class ConstantVariable extends Calculation {
+		private final int value;
+		private final int slot;
+		private final boolean defined;
+
+		private ConstantVariable(int value, int slot, boolean defined) {
+			this.value = value;
+			this.slot = slot;
+			this.defined = defined;
+		}
+
+		@Override
+		public int intValue(ExecutionContext ctx) {
+			return operand.apply(value, ctx.getVar(slot, defined));
+		}
+	}
+
+	/**
+	 * {@code v op w}
+	 */
+	final class VariableVariable extends Calculation {
+		private final int leftSlot;
+		private final boolean leftDefined;
+		private final int rightSlot;
+		private final boolean rightDefined;
+
+		private VariableVariable(int leftSlot, boolean leftDefined, int rightSlot, boolean rightDefined) {
+			this.leftSlot = leftSlot;
+			this.leftDefined = leftDefined;
+			this.rightSlot = rightSlot;
+			this.rightDefined = rightDefined;
+		}
+
+		@Override
+		public int intValue(ExecutionContext ctx) {
+			return operand.apply(ctx.getVar(leftSlot, leftDefined), ctx.getVar(rightSlot, rightDefined));
+		}
+	}
+
+	/**
+	 * A calculation failing with an {@link ArithmeticOverflowError} instead of wrapping around, see
+	 * {@link ProgrammableCalculator#setCheckedArithmetic(boolean)}
+	 */
+	final class Checked implements Expression {
+		final Calculation calc;
+		/**
+		 * The line number of the calculation, for the error
+		 */
+		final int line;
+
+		Checked(Calculation calc, int line) {
+			this.calc = calc;
+			this.line = line;
+		}
+
+		/**
+		 * @return The expression with every calculation checked
+		 */
+		static Expression of(Expression expression, int line) {
+			return expression instanceof Calculation calc ? new Checked(calc, line) : expression;
+		}
+
+		public int intValue(ExecutionContext ctx) {
+			var left = calc.left.intValue(ctx);
+			var right = calc.right.intValue(ctx);
+
+			// Division by zero is not an overflow and fails as usual
+			if (calc.operand == Calculation.Operand.Div && right != -1) {
+				return left / right;
+			}
+
+			try {
+				return switch (calc.operand) {
+					case Add -> Math.addExact(left, right);
+					case Sub -> Math.subtractExact(left, right);
+					case Mul -> Math.multiplyExact(left, right);
+					case Div -> Math.negateExact(left);
+				};
+			} catch (ArithmeticException e) {
+				throw new ArithmeticOverflowError(line, left + " " + calc.operand.symbol + " " + right);
+			}
+		}
+
+		public String stringValue(ExecutionContext ctx) {
+			return Integer.toString(intValue(ctx));
+		}
+
+		@Override
+		public String toString() {
+			return calc.toString();
+		}
+	}
+}
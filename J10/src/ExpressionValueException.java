@@ -0,0 +1,5 @@
+class ExpressionValueException extends RuntimeException {
+	ExpressionValueException(String msg) {
+		super("Invalid BASIC expression: " + msg);
+	}
+}
@@ -0,0 +1,5 @@
+class GosubError extends RuntimeException {
+	GosubError(int destination) {
+		super("GOSUB error: no such destination " + destination);
+	}
+}
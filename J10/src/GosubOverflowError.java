@@ -0,0 +1,5 @@
+class GosubOverflowError extends RuntimeException {
+	GosubOverflowError(int line, int depth) {
+		super("GOSUB error: stack overflow at line " + line + ", more than " + depth + " nested subroutines");
+	}
+}
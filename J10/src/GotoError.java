@@ -0,0 +1,5 @@
+class GotoError extends RuntimeException {
+	GotoError(int destination) {
+		super("GOTO error: no such destination " + destination);
+	}
+}
@@ -0,0 +1,280 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+
+interface Instruction {
+	static Instruction parse(String line, NavigableMap<Integer, Integer> lineMappings, SymbolTable symbols) {
+		var instRegex = PrecompiledRegexes.INSTRUCTION;
+
+		try {
+			var matcher = instRegex.matcher(line);
+			var matchRes = matcher.matches();
+			assert matchRes;
+
+			var inst = matcher.group("inst").toUpperCase(Locale.ROOT);
+			var rest = matcher.group("rest").trim();
+
+			return switch (inst) {
+				case "LET" -> Let.parse(rest, symbols);
+				case "PRINT" -> Print.parse(rest, symbols);
+				case "GOTO" -> Goto.parse(rest, lineMappings);
+				case "END" -> End.parse(rest);
+				case "IF" -> If.parse(rest, lineMappings, symbols);
+				case "INPUT" -> Input.parse(rest, symbols);
+				case "GOSUB" -> Gosub.parse(rest, lineMappings);
+				case "RETURN" -> Return.parse(rest);
+				default -> throw new SyntaxError(line);
+			};
+		} catch (SyntaxError e) {
+			throw new SyntaxError(line, e.getMessage());
+		} catch (Exception e) {
+			throw new SyntaxError(line);
+		}
+	}
+
+	/**
+	 * Run the instruction
+	 *
+	 * @param ctx The execution context
+	 * @return An int with the following meanings:<br> <table>
+	 * <tr> <td>value</td> <td>meaning</td> </tr>
+	 * <tr> <td>MIN</td> <td>Return from a subroutine</td> </tr>
+	 * <tr> <td>MAX</td> <td>Continue on the next line</td> </tr>
+	 * <tr> <td>>= 0, < MAX</td> <td>Go to the returned line</td> </tr>
+	 * <tr> <td>> MIN, < 0</td> <td>Go to a subroutine at line -return - 1</td> </tr>
+	 * </table>
+	 * @throws StopRun To stop the execution of the program
+	 */
+	int run(ExecutionContext ctx) throws StopRun;
+
+	class Let implements Instruction {
+		String name;
+		int slot;
+		Expression value;
+
+		static Instruction parse(String line, SymbolTable symbols) {
+			var res = new Let();
+
+			var instRegex = PrecompiledRegexes.LET;
+
+			try {
+				var matcher = instRegex.matcher(line);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				res.name = matcher.group("name").toLowerCase(Locale.ROOT);
+				res.slot = symbols.slot(res.name);
+				res.value = Expression.parse(matcher.group("expr"), symbols);
+
+				return res;
+			} catch (SyntaxError e) {
+				throw new SyntaxError(line, e.getMessage());
+			} catch (Exception e) {
+				throw new SyntaxError(line);
+			}
+		}
+
+		public int run(ExecutionContext ctx) {
+			ctx.setVar(slot, value.intValue(ctx));
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	class Print implements Instruction {
+		Expression value;
+
+		static Instruction parse(String line, SymbolTable symbols) {
+			var res = new Print();
+
+			try {
+				res.value = Expression.parse(line, symbols);
+				return res;
+			} catch (SyntaxError e) {
+				throw new SyntaxError(line, e.getMessage());
+			}
+		}
+
+		public int run(ExecutionContext ctx) {
+			value.print(ctx);
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	class Goto implements Instruction {
+		int destination;
+
+		static Instruction parse(String line, NavigableMap<Integer, Integer> lineMappings) {
+			var res = new Goto();
+
+			try {
+				var dest = Integer.parseInt(line);
+				var mappedDest = lineMappings.get(dest);
+
+				if (mappedDest == null) {
+					throw new GotoError(dest);
+				}
+
+				res.destination = mappedDest;
+				return res;
+			} catch (NumberFormatException e) {
+				throw new SyntaxError(line, e.getMessage());
+			}
+		}
+
+		public int run(ExecutionContext ctx) {
+			return destination;
+		}
+	}
+
+	class End implements Instruction {
+		static Instruction parse(String line) {
+			if (!line.isEmpty()) {
+				throw new SyntaxError(line);
+			}
+
+			return new End();
+		}
+
+		public int run(ExecutionContext ctx) throws StopRun {
+			throw new StopRun();
+		}
+	}
+
+	class If implements Instruction {
+		Expression left;
+		Expression right;
+		Comparison cmp;
+		int destination;
+
+		static Instruction parse(String line, Map<Integer, Integer> lineMappings, SymbolTable symbols) {
+			var res = new If();
+
+			var instRegex = PrecompiledRegexes.IF;
+
+			try {
+				var matcher = instRegex.matcher(line);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				res.left = Expression.parse(matcher.group("left"), symbols);
+				res.right = Expression.parse(matcher.group("right"), symbols);
+
+				var dest = Integer.parseInt(matcher.group("dest"));
+				var mappedDest = lineMappings.get(dest);
+
+				if (mappedDest == null) {
+					throw new SyntaxError(line, "No such destination: " + dest);
+				}
+
+				res.destination = mappedDest;
+
+				switch (matcher.group("cmp")) {
+					case "=": {
+						res.cmp = Comparison.Eq;
+						return res;
+					}
+					case ">": {
+						res.cmp = Comparison.Gt;
+						return res;
+					}
+					case "<": {
+						res.cmp = Comparison.Lt;
+						return res;
+					}
+					default: {
+						throw new SyntaxError(line, "Unknown comparison operator '" + matcher.group("cmp") + "'");
+					}
+				}
+			} catch (SyntaxError e) {
+				throw new SyntaxError(line, e.getMessage());
+			} catch (Exception e) {
+				throw new SyntaxError(line);
+			}
+		}
+
+		public int run(ExecutionContext ctx) {
+			if (cmp.eval(left, right, ctx)) {
+				return destination;
+			} else {
+				return Integer.MAX_VALUE;
+			}
+		}
+	}
+
+	class Input implements Instruction {
+		String name;
+		int slot;
+
+		static Instruction parse(String line, SymbolTable symbols) {
+			var res = new Input();
+
+			var instRegex = PrecompiledRegexes.INPUT;
+
+			try {
+				var matcher = instRegex.matcher(line);
+				var matchRes = matcher.matches();
+				assert matchRes;
+
+				res.name = matcher.group("name").toLowerCase(Locale.ROOT);
+				res.slot = symbols.slot(res.name);
+				return res;
+			} catch (Exception e) {
+				throw new SyntaxError(line);
+			}
+		}
+
+		public int run(ExecutionContext ctx) {
+			ctx.setVar(slot, ctx.readInt());
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	class Gosub implements Instruction {
+		int destination;
+
+		static Instruction parse(String line, Map<Integer, Integer> lineMappings) {
+			var res = new Gosub();
+
+			try {
+				var dest = Integer.parseInt(line);
+				var mappedDest = lineMappings.get(dest);
+
+				if (mappedDest == null) {
+					throw new GotoError(dest);
+				}
+
+				res.destination = -mappedDest - 1;
+				return res;
+			} catch (NumberFormatException e) {
+				throw new SyntaxError(line, e.getMessage());
+			}
+		}
+
+		public int run(ExecutionContext ctx) {
+			return destination;
+		}
+	}
+
+	class Return implements Instruction {
+		static Instruction parse(String line) {
+			if (!line.isEmpty()) {
+				throw new SyntaxError(line);
+			}
+
+			return new Return();
+		}
+
+		public int run(ExecutionContext ctx) {
+			return Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * An instruction removed by the {@link Optimizer}
+	 */
+	class Nop implements Instruction {
+		public int run(ExecutionContext ctx) {
+			return Integer.MAX_VALUE;
+		}
+	}
+}
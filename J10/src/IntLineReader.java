@@ -0,0 +1,14 @@
+/**
+ * A {@link ProgrammableCalculatorInterface.LineReader} which can also return lines as already parsed ints,
+ * used by INPUT to skip building and parsing a string
+ */
+interface IntLineReader extends ProgrammableCalculatorInterface.LineReader {
+	/**
+	 * Read a line and parse it as an int
+	 *
+	 * @return The same as {@code Integer.parseInt(readLine())}
+	 * @throws NumberFormatException If the line is not an int, with the same message as
+	 *                               {@link Integer#parseInt(String)}
+	 */
+	int readInt();
+}
@@ -0,0 +1,583 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * Translates a parsed BASIC program into a hidden class implementing {@link JitProgram}, so that HotSpot
+ * can compile the program itself. Line numbers become labels, GOTO and IF become jumps and RETURN jumps
+ * back to the dispatching tableswitch at the start of the method.
+ */
+class JitCompiler {
+	/**
+	 * The largest method HotSpot compiles, see -XX:HugeMethodLimit. A larger program would only ever run in
+	 * the bytecode interpreter, many times slower than the tree walker, so it is not translated. This also
+	 * keeps every jump offset within the signed 16 bits of a jump instruction.
+	 */
+	private static final int MAX_CODE_LENGTH = 8000;
+
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC = 0x12;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD = 0x15;
+	private static final int LLOAD = 0x16;
+	private static final int ILOAD_3 = 0x1d;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int ISTORE = 0x36;
+	private static final int LSTORE = 0x37;
+	private static final int ISTORE_3 = 0x3e;
+	private static final int IADD = 0x60;
+	private static final int LSUB = 0x65;
+	private static final int LADD = 0x61;
+	private static final int IINC = 0x84;
+	private static final int I2L = 0x85;
+	private static final int IFNE = 0x9a;
+	private static final int ISUB = 0x64;
+	private static final int IMUL = 0x68;
+	private static final int IDIV = 0x6c;
+	private static final int IF_ICMPEQ = 0x9f;
+	private static final int IF_ICMPLT = 0xa1;
+	private static final int IF_ICMPGT = 0xa3;
+	private static final int GOTO = 0xa7;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int RETURN = 0xb1;
+	private static final int GETFIELD = 0xb4;
+	private static final int PUTFIELD = 0xb5;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int ATHROW = 0xbf;
+	/**
+	 * The locals counting the executed lines: the step count at the next call to
+	 * {@link ExecutionContext#safepoint(int)} and the number of lines left until then. The step count is
+	 * their difference, stored to {@link ExecutionContext#steps} on exit.
+	 */
+	private static final int CHECK_AT = 4;
+	private static final int COUNTDOWN = 6;
+
+	private final ConstantPool pool = new ConstantPool();
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream(4096);
+	private final int[] labels;
+	private final int endLabel;
+	private final int dispatchLabel;
+	private final int safepointLabel;
+	/**
+	 * Pairs of (position of the jump opcode, label) which still need their offsets filled in
+	 */
+	private final List<int[]> jumps = new ArrayList<>();
+	/**
+	 * The code range covered by the exception handler which stores the step count, and the handler itself
+	 */
+	private int protectedStart;
+	private int handler;
+
+	private JitCompiler(int lines) {
+		// One label for every line, one for the end of the program, the dispatch and the safepoint
+		labels = new int[lines + 3];
+		endLabel = lines;
+		dispatchLabel = lines + 1;
+		safepointLabel = lines + 2;
+	}
+
+	/**
+	 * Compile the program
+	 *
+	 * @return The compiled program, or null if the program uses something the compiler does not support or is
+	 * too large for HotSpot to compile
+	 */
+	static JitProgram compile(
+			List<MaybeUnparsedInstruction> program,
+			NavigableMap<Integer, Integer> lineMappings,
+			SymbolTable symbols
+	) {
+		var instructions = new Instruction[program.size()];
+
+		try {
+			for (int i = 0; i < instructions.length; i++) {
+				instructions[i] = program.get(i).get(lineMappings, symbols);
+			}
+		} catch (RuntimeException | AssertionError e) {
+			// Syntax errors have to be reported only once the line is reached, by the tree walker
+			return null;
+		}
+
+		var compiler = new JitCompiler(instructions.length);
+
+		try {
+			var bytes = compiler.classFile(instructions);
+			var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			var constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+			return (JitProgram) constructor.invoke();
+		} catch (UnsupportedOperationException e) {
+			return null;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Invalid JIT output", e);
+		}
+	}
+
+	/**
+	 * Called by the compiled program before a line once the step count reaches the next check
+	 *
+	 * @return The number of lines until the next check
+	 */
+	static int safepoint(ExecutionContext ctx, long steps, int index) {
+		ctx.steps = steps;
+		return (int) (ctx.safepoint(index) - steps);
+	}
+
+	/**
+	 * Called by the compiled program when a string operand can not be converted to an integer
+	 */
+	static int invalidString(String content) {
+		throw new ExpressionValueException("string '" + content + "' can not be converted to an integer");
+	}
+
+	private byte[] classFile(Instruction[] instructions) throws IOException {
+		generate(instructions);
+
+		var thisClass = pool.classRef("JitProgram$Compiled");
+		var superClass = pool.classRef("java/lang/Object");
+		var iface = pool.classRef("JitProgram");
+		var codeName = pool.utf8("Code");
+		var initName = pool.utf8("<init>");
+		var initType = pool.utf8("()V");
+		var runName = pool.utf8("run");
+		var runType = pool.utf8("(LExecutionContext;LReturnStack;I)V");
+		var objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+
+		var init = new byte[]{
+				(byte) ALOAD_0,
+				(byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+				(byte) RETURN
+		};
+
+		var bytes = new ByteArrayOutputStream(code.size() + 1024);
+		var out = new DataOutputStream(bytes);
+
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(50);
+		pool.write(out);
+		out.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(iface);
+		out.writeShort(0);
+		out.writeShort(2);
+		method(out, initName, initType, codeName, 1, 1, init, new int[0]);
+		method(out, runName, runType, codeName, 6, 7, code.toByteArray(), new int[]{protectedStart, handler, handler, 0});
+		out.writeShort(0);
+
+		return bytes.toByteArray();
+	}
+
+	private static void method(
+			DataOutputStream out,
+			int name,
+			int type,
+			int codeName,
+			int maxStack,
+			int maxLocals,
+			byte[] code,
+			int[] exceptionTable
+	) throws IOException {
+		out.writeShort(0x0001); // ACC_PUBLIC
+		out.writeShort(name);
+		out.writeShort(type);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length + 2 * exceptionTable.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(exceptionTable.length / 4);
+
+		for (var entry : exceptionTable) {
+			out.writeShort(entry);
+		}
+
+		out.writeShort(0);
+	}
+
+	private void generate(Instruction[] instructions) {
+		var end = instructions.length;
+
+		if (end == 0) {
+			throw new UnsupportedOperationException("Empty program");
+		}
+
+		// The first line calls the safepoint, as ExecutionContext.start() sets nextCheck to steps
+		op(ALOAD_1);
+		field(GETFIELD, "ExecutionContext", "steps", "J");
+		op(LSTORE);
+		op(CHECK_AT);
+		op(ICONST_0);
+		op(ISTORE);
+		op(COUNTDOWN);
+
+		// Dispatch on the program index in local 3, used on entry, by RETURN and after the safepoint
+		labels[dispatchLabel] = code.size();
+		protectedStart = code.size();
+		op(ILOAD_3);
+		var tableswitch = code.size();
+		op(TABLESWITCH);
+
+		while (code.size() % 4 != 0) {
+			op(0);
+		}
+
+		var table = code.size();
+		int32(0);
+		int32(0);
+		int32(end - 1);
+
+		for (int i = 0; i < end; i++) {
+			int32(0);
+		}
+
+		for (int i = 0; i < end; i++) {
+			labels[i] = code.size();
+			count(i);
+			instruction(instructions[i], i);
+
+			if (code.size() > MAX_CODE_LENGTH) {
+				throw new UnsupportedOperationException("Program too large");
+			}
+		}
+
+		labels[endLabel] = code.size();
+		storeSteps();
+		op(RETURN);
+
+		// Called with the countdown at 0 and the program index in local 3, continues at the same line
+		labels[safepointLabel] = code.size();
+		op(ALOAD_1);
+		op(LLOAD);
+		op(CHECK_AT);
+		op(ILOAD_3);
+		invokestatic("JitCompiler", "safepoint", "(LExecutionContext;JI)I");
+		op(ISTORE);
+		op(COUNTDOWN);
+		op(LLOAD);
+		op(CHECK_AT);
+		op(ILOAD);
+		op(COUNTDOWN);
+		op(I2L);
+		op(LADD);
+		op(LSTORE);
+		op(CHECK_AT);
+		jump(GOTO, dispatchLabel);
+
+		// Any exception, with the exception still on the operand stack
+		handler = code.size();
+		storeSteps();
+		op(ATHROW);
+
+		if (code.size() > MAX_CODE_LENGTH) {
+			throw new UnsupportedOperationException("Program too large");
+		}
+
+		var bytes = code.toByteArray();
+		code.reset();
+
+		for (var jump : jumps) {
+			var offset = labels[jump[1]] - jump[0];
+			bytes[jump[0] + 1] = (byte) (offset >> 8);
+			bytes[jump[0] + 2] = (byte) offset;
+		}
+
+		patch32(bytes, table, labels[endLabel] - tableswitch);
+
+		for (int i = 0; i < end; i++) {
+			patch32(bytes, table + 12 + 4 * i, labels[i] - tableswitch);
+		}
+
+		code.writeBytes(bytes);
+	}
+
+	private void instruction(Instruction instruction, int index) {
+		switch (instruction) {
+			case Instruction.Let let -> {
+				op(ALOAD_1);
+				constant(let.slot);
+				expression(let.value);
+				invokevirtual("ExecutionContext", "setVar", "(II)V");
+			}
+			case Instruction.Print print -> {
+				op(ALOAD_1);
+
+				if (print.value instanceof Expression.Str str) {
+					ldc(pool.string(str.content));
+					invokevirtual("ExecutionContext", "print", "(Ljava/lang/String;)V");
+				} else {
+					expression(print.value);
+					invokevirtual("ExecutionContext", "print", "(I)V");
+				}
+			}
+			case Instruction.Goto goto_ -> jump(GOTO, goto_.destination);
+			case Instruction.End ignored -> jump(GOTO, endLabel);
+			case Instruction.If if_ -> {
+				expression(if_.left);
+				expression(if_.right);
+
+				var op = switch (if_.cmp) {
+					case Eq -> IF_ICMPEQ;
+					case Lt -> IF_ICMPLT;
+					case Gt -> IF_ICMPGT;
+				};
+
+				jump(op, if_.destination);
+			}
+			case Instruction.Input input -> {
+				op(ALOAD_1);
+				constant(input.slot);
+				op(ALOAD_1);
+				invokevirtual("ExecutionContext", "readInt", "()I");
+				invokevirtual("ExecutionContext", "setVar", "(II)V");
+			}
+			case Instruction.Gosub gosub -> {
+				op(ALOAD_2);
+				constant(index + 1);
+				invokevirtual("ReturnStack", "push", "(I)V");
+				jump(GOTO, -gosub.destination - 1);
+			}
+			case Instruction.Return ignored -> {
+				op(ALOAD_2);
+				constant(index);
+				invokevirtual("ReturnStack", "pop", "(I)I");
+				op(ISTORE_3);
+				jump(GOTO, dispatchLabel);
+			}
+			case Instruction.Nop ignored -> {
+			}
+			default -> throw new UnsupportedOperationException(instruction.getClass().getName());
+		}
+	}
+
+	private void expression(Expression expression) {
+		switch (expression) {
+			case Expression.Int i -> constant(i.value);
+			case Expression.Variable v -> {
+				op(ALOAD_1);
+				constant(v.slot);
+				invokevirtual("ExecutionContext", "getVar", "(I)I");
+			}
+			case Expression.Str s -> {
+				if (s.numeric) {
+					constant(s.value);
+				} else {
+					ldc(pool.string(s.content));
+					invokestatic("JitCompiler", "invalidString", "(Ljava/lang/String;)I");
+				}
+			}
+			case Expression.Calculation calc -> {
+				expression(calc.left);
+				expression(calc.right);
+				op(switch (calc.operand) {
+					case Add -> IADD;
+					case Sub -> ISUB;
+					case Mul -> IMUL;
+					case Div -> IDIV;
+				});
+			}
+			default -> throw new UnsupportedOperationException(expression.getClass().getName());
+		}
+	}
+
+	/**
+	 * Count the line, going to the safepoint first if the countdown reached 0
+	 */
+	private void count(int index) {
+		op(ILOAD);
+		op(COUNTDOWN);
+		// Skip the following 7 bytes
+		op(IFNE);
+		int16(3 + 7);
+		op(SIPUSH);
+		int16(index);
+		op(ISTORE_3);
+		jump(GOTO, safepointLabel);
+		op(IINC);
+		op(COUNTDOWN);
+		op(-1);
+	}
+
+	private void storeSteps() {
+		op(ALOAD_1);
+		op(LLOAD);
+		op(CHECK_AT);
+		op(ILOAD);
+		op(COUNTDOWN);
+		op(I2L);
+		op(LSUB);
+		field(PUTFIELD, "ExecutionContext", "steps", "J");
+	}
+
+	private void jump(int op, int label) {
+		jumps.add(new int[]{code.size(), label});
+		op(op);
+		op(0);
+		op(0);
+	}
+
+	private void constant(int value) {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(BIPUSH);
+			op(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH);
+			int16(value);
+		} else {
+			ldc(pool.integer(value));
+		}
+	}
+
+	private void ldc(int index) {
+		if (index <= 0xff) {
+			op(LDC);
+			op(index);
+		} else {
+			op(LDC_W);
+			int16(index);
+		}
+	}
+
+	private void invokevirtual(String owner, String name, String type) {
+		op(INVOKEVIRTUAL);
+		int16(pool.methodRef(owner, name, type));
+	}
+
+	private void field(int op, String owner, String name, String type) {
+		op(op);
+		int16(pool.fieldRef(owner, name, type));
+	}
+
+	private void invokestatic(String owner, String name, String type) {
+		op(INVOKESTATIC);
+		int16(pool.methodRef(owner, name, type));
+	}
+
+	private void op(int op) {
+		code.write(op);
+	}
+
+	private void int16(int value) {
+		code.write(value >> 8);
+		code.write(value);
+	}
+
+	private void int32(int value) {
+		int16(value >> 16);
+		int16(value);
+	}
+
+	private static void patch32(byte[] bytes, int at, int value) {
+		bytes[at] = (byte) (value >> 24);
+		bytes[at + 1] = (byte) (value >> 16);
+		bytes[at + 2] = (byte) (value >> 8);
+		bytes[at + 3] = (byte) value;
+	}
+
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final HashMap<String, Integer> entries = new HashMap<>();
+		private int count = 1;
+
+		int utf8(String value) {
+			return entry("U" + value, () -> {
+				out.writeByte(1);
+				out.writeUTF(value);
+			});
+		}
+
+		int integer(int value) {
+			return entry("I" + value, () -> {
+				out.writeByte(3);
+				out.writeInt(value);
+			});
+		}
+
+		int string(String value) {
+			var utf8 = utf8(value);
+			return entry("S" + value, () -> {
+				out.writeByte(8);
+				out.writeShort(utf8);
+			});
+		}
+
+		int classRef(String name) {
+			var utf8 = utf8(name);
+			return entry("C" + name, () -> {
+				out.writeByte(7);
+				out.writeShort(utf8);
+			});
+		}
+
+		int methodRef(String owner, String name, String type) {
+			return memberRef(10, "M", owner, name, type);
+		}
+
+		int fieldRef(String owner, String name, String type) {
+			return memberRef(9, "F", owner, name, type);
+		}
+
+		private int memberRef(int tag, String kind, String owner, String name, String type) {
+			var ownerRef = classRef(owner);
+			var nameRef = utf8(name);
+			var typeRef = utf8(type);
+			var nameAndType = entry("N" + name + " " + type, () -> {
+				out.writeByte(12);
+				out.writeShort(nameRef);
+				out.writeShort(typeRef);
+			});
+
+			return entry(kind + owner + "." + name + type, () -> {
+				out.writeByte(tag);
+				out.writeShort(ownerRef);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		void write(DataOutputStream to) throws IOException {
+			to.writeShort(count);
+			bytes.writeTo(to);
+		}
+
+		private int entry(String key, Entry entry) {
+			var index = entries.get(key);
+
+			if (index == null) {
+				if (count == 0xffff) {
+					throw new UnsupportedOperationException("Constant pool too large");
+				}
+
+				try {
+					entry.write();
+				} catch (IOException e) {
+					// Only thrown for strings too long for the class file format
+					throw new UnsupportedOperationException(e);
+				}
+
+				index = count++;
+				entries.put(key, index);
+			}
+
+			return index;
+		}
+
+		private interface Entry {
+			void write() throws IOException;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+/**
+ * A BASIC program translated to a JVM class
+ */
+interface JitProgram {
+	/**
+	 * Run the program starting at the given program index
+	 *
+	 * @param ctx The execution context
+	 * @param stack The GOSUB stack, holding program indices
+	 * @param index The program index of the first instruction
+	 */
+	void run(ExecutionContext ctx, ReturnStack stack, int index);
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The numbered lines of a memory-mapped BASIC source file, split in a single pass over the mapped bytes.
+ * <br>
+ * Lines are separated the same way as by {@link ProgrammableCalculator#programCodeReader(java.io.BufferedReader)}:
+ * on '\n' optionally preceded by '\r', skipping empty lines. The mapping is copied to the heap in one bulk
+ * read and the instructions are kept as views into the copy, only lines with non-ASCII characters are decoded
+ * into strings. The program outlives the mapping, which faults when the file is truncated after loading.
+ */
+class MappedSource {
+	/**
+	 * The line numbers, in ascending order
+	 */
+	final int[] numbers;
+	/**
+	 * The instruction of each line, without the line number
+	 */
+	final CharSequence[] instructions;
+	final int size;
+
+	private MappedSource(int[] numbers, CharSequence[] instructions, int size) {
+		this.numbers = numbers;
+		this.instructions = instructions;
+		this.size = size;
+	}
+
+	static MappedSource map(Path path) throws IOException {
+		return of(mapFile(path));
+	}
+
+	static MappedByteBuffer mapFile(Path path) throws IOException {
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("BASIC source file too large: " + path);
+			}
+
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Split the content of a source file into lines
+	 */
+	static MappedSource of(ByteBuffer buffer) {
+		if (buffer.isDirect()) {
+			var copy = new byte[buffer.limit()];
+			buffer.get(0, copy);
+			buffer = ByteBuffer.wrap(copy);
+		}
+
+		var limit = buffer.limit();
+		var numbers = new int[256];
+		var instructions = new CharSequence[256];
+		var size = 0;
+		var sorted = true;
+
+		for (int start = 0, next; start < limit; start = next) {
+			var newline = start;
+
+			while (newline < limit && buffer.get(newline) != '\n') {
+				newline++;
+			}
+
+			next = newline + 1;
+			var end = newline < limit && newline > start && buffer.get(newline - 1) == '\r' ? newline - 1 : newline;
+
+			if (end == start) {
+				continue;
+			}
+
+			var pos = start;
+			long number = 0;
+
+			while (pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' && number <= Integer.MAX_VALUE) {
+				number = number * 10 + (buffer.get(pos++) - '0');
+			}
+
+			if (pos == start || pos + 1 >= end || buffer.get(pos) != ' ' || number > Integer.MAX_VALUE) {
+				throw new SyntaxError(StandardCharsets.UTF_8.decode(buffer.slice(start, end - start)).toString());
+			}
+
+			if (size == numbers.length) {
+				numbers = Arrays.copyOf(numbers, size * 2);
+				instructions = Arrays.copyOf(instructions, size * 2);
+			}
+
+			sorted &= size == 0 || numbers[size - 1] < number;
+			numbers[size] = (int) number;
+			instructions[size] = instruction(buffer, pos + 1, end);
+			size++;
+		}
+
+		if (!sorted) {
+			return sort(numbers, instructions, size);
+		}
+
+		return new MappedSource(numbers, instructions, size);
+	}
+
+	private static CharSequence instruction(ByteBuffer buffer, int start, int end) {
+		var ascii = true;
+
+		for (int i = start; i < end; i++) {
+			var b = buffer.get(i);
+
+			if (b == '\r') {
+				throw new SyntaxError(StandardCharsets.UTF_8.decode(buffer.slice(start, end - start)).toString());
+			}
+
+			ascii &= b >= 0;
+		}
+
+		if (ascii) {
+			return new AsciiSequence(buffer, start, end - start);
+		}
+
+		var res = StandardCharsets.UTF_8.decode(buffer.slice(start, end - start)).toString();
+
+		if (res.indexOf('\u0085') >= 0 || res.indexOf('\u2028') >= 0 || res.indexOf('\u2029') >= 0) {
+			throw new SyntaxError(res);
+		}
+
+		return res;
+	}
+
+	/**
+	 * Sort the lines by their numbers, keeping the last of any duplicated line numbers
+	 */
+	private static MappedSource sort(int[] numbers, CharSequence[] instructions, int size) {
+		var keys = new long[size];
+
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) numbers[i] << 32) | i;
+		}
+
+		Arrays.sort(keys);
+
+		var sortedNumbers = new int[size];
+		var sortedInstructions = new CharSequence[size];
+		var sortedSize = 0;
+
+		for (int i = 0; i < size; i++) {
+			var number = (int) (keys[i] >>> 32);
+			var instruction = instructions[(int) keys[i]];
+
+			if (sortedSize > 0 && sortedNumbers[sortedSize - 1] == number) {
+				if (ProgrammableCalculator.ASSERTIONS) {
+					throw new SyntaxError(number + " ...", "Duplicated line number");
+				}
+
+				sortedInstructions[sortedSize - 1] = instruction;
+			} else {
+				sortedNumbers[sortedSize] = number;
+				sortedInstructions[sortedSize] = instruction;
+				sortedSize++;
+			}
+		}
+
+		return new MappedSource(sortedNumbers, sortedInstructions, sortedSize);
+	}
+}
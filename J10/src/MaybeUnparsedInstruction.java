@@ -0,0 +1,42 @@
+import java.util.NavigableMap;
+
+class MaybeUnparsedInstruction {
+	final CharSequence source;
+	volatile Instruction parsed;
+	/**
+	 * The instruction run by the tree walker, possibly a {@link Superinstruction} covering the next line too
+	 */
+	volatile Instruction linked;
+
+	MaybeUnparsedInstruction(CharSequence source) {
+		this.source = source;
+		parsed = null;
+	}
+
+	/**
+	 * @param parsed The already parsed instruction, or null
+	 */
+	MaybeUnparsedInstruction(CharSequence source, Instruction parsed) {
+		this.source = source;
+		this.parsed = parsed;
+	}
+
+	Instruction get(NavigableMap<Integer, Integer> lineMappings, SymbolTable symbols) {
+		if (parsed == null) {
+			parse(lineMappings, symbols);
+		}
+
+		return parsed;
+	}
+
+	synchronized void parse(NavigableMap<Integer, Integer> lineMappings, SymbolTable symbols) {
+		if (parsed == null) {
+			parsed = BasicParser.parse(source, lineMappings, symbols);
+		}
+	}
+
+	synchronized void replace(Instruction instruction) {
+		parsed = instruction;
+		linked = null;
+	}
+}
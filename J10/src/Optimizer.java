@@ -0,0 +1,186 @@
+import java.util.*;
+
+/**
+ * An optimisation pass over a loaded program. Starting from the first line, and from every line the
+ * program is later run from, it follows all GOTO, IF and GOSUB destinations, parsing only the lines it
+ * reaches. On the way calculations with two constant operands are folded, and IFs comparing two
+ * constants become GOTOs or are removed.
+ * <br>
+ * Lines which are never reached stay unparsed, they are only parsed if the program is ever run from one.
+ */
+class Optimizer {
+	private final List<MaybeUnparsedInstruction> program;
+	private final NavigableMap<Integer, Integer> lineMappings;
+	private final SymbolTable symbols;
+	private final BitSet visited = new BitSet();
+	private final List<String> changes = new ArrayList<>();
+	/**
+	 * The line number of every program index
+	 */
+	private final int[] lines;
+
+	Optimizer(
+			List<MaybeUnparsedInstruction> program,
+			NavigableMap<Integer, Integer> lineMappings,
+			SymbolTable symbols,
+			int[] lines
+	) {
+		this.program = program;
+		this.lineMappings = lineMappings;
+		this.symbols = symbols;
+		this.lines = lines;
+	}
+
+	/**
+	 * Optimise every line reachable from the given program index. Runs of the program may call this
+	 * concurrently.
+	 *
+	 * @param index The program index to start from
+	 */
+	synchronized void reach(int index) {
+		var pending = new ArrayDeque<Integer>();
+		pending.push(index);
+
+		while (!pending.isEmpty()) {
+			var pc = pending.pop();
+
+			if (pc >= program.size() || visited.get(pc)) {
+				continue;
+			}
+
+			visited.set(pc);
+
+			Instruction instruction;
+
+			try {
+				instruction = optimize(pc, program.get(pc).get(lineMappings, symbols));
+			} catch (RuntimeException | AssertionError e) {
+				// The syntax error is reported if the line is executed
+				continue;
+			}
+
+			switch (instruction) {
+				case Instruction.Goto goto_ -> pending.push(goto_.destination);
+				case Instruction.If if_ -> {
+					pending.push(pc + 1);
+					pending.push(if_.destination);
+				}
+				case Instruction.Gosub gosub -> {
+					pending.push(pc + 1);
+					pending.push(-gosub.destination - 1);
+				}
+				case Instruction.End ignored -> {
+				}
+				case Instruction.Return ignored -> {
+				}
+				default -> pending.push(pc + 1);
+			}
+		}
+	}
+
+	/**
+	 * @return A description of every change made, followed by the ranges of lines which were not reached
+	 */
+	synchronized List<String> report() {
+		var res = new ArrayList<>(changes);
+
+		for (int from = visited.nextClearBit(0), to; from < program.size(); from = visited.nextClearBit(to + 1)) {
+			var next = visited.nextSetBit(from);
+			to = (next < 0 ? program.size() : next) - 1;
+
+			if (from == to) {
+				res.add("line " + lines[from] + ": unreachable, not parsed");
+			} else {
+				res.add("lines " + lines[from] + "-" + lines[to] + ": unreachable, not parsed");
+			}
+		}
+
+		return res;
+	}
+
+	private Instruction optimize(int pc, Instruction instruction) {
+		var res = switch (instruction) {
+			case Instruction.Let let -> {
+				var value = fold(let.value);
+
+				if (value == let.value) {
+					yield let;
+				}
+
+				var folded = new Instruction.Let();
+				folded.name = let.name;
+				folded.slot = let.slot;
+				folded.value = value;
+				yield folded;
+			}
+			case Instruction.Print print -> {
+				var value = fold(print.value);
+
+				if (value == print.value) {
+					yield print;
+				}
+
+				var folded = new Instruction.Print();
+				folded.value = value;
+				yield folded;
+			}
+			case Instruction.If if_ -> {
+				if (!(if_.left instanceof Expression.Int) || !(if_.right instanceof Expression.Int)) {
+					yield if_;
+				}
+
+				if (if_.cmp.eval(if_.left, if_.right, null)) {
+					var folded = new Instruction.Goto();
+					folded.destination = if_.destination;
+					yield folded;
+				}
+
+				yield new Instruction.Nop();
+			}
+			default -> instruction;
+		};
+
+		if (res != instruction) {
+			program.get(pc).replace(res);
+
+			if (pc > 0) {
+				// A superinstruction on the previous line may contain a copy of the replaced instruction
+				program.get(pc - 1).linked = null;
+			}
+
+			changes.add("line " + lines[pc] + ": '" + program.get(pc).source + "' -> " + describe(res));
+		}
+
+		return res;
+	}
+
+	private static Expression fold(Expression expression) {
+		if (!(expression instanceof Expression.Calculation calc)
+				|| !(calc.left instanceof Expression.Int)
+				|| !(calc.right instanceof Expression.Int right)
+				|| (calc.operand == Expression.Calculation.Operand.Div && right.value == 0)) {
+			return expression;
+		}
+
+		var res = new Expression.Int();
+
+		// Calculations which overflow are left to fail in checked arithmetic mode
+		try {
+			res.value = new Expression.Checked(calc, 0).intValue(null);
+		} catch (ArithmeticOverflowError e) {
+			return expression;
+		}
+
+		return res;
+	}
+
+	private String describe(Instruction instruction) {
+		return switch (instruction) {
+			case Instruction.Let let -> "'LET " + let.name + " = " + let.value + "'";
+			case Instruction.Print print -> "'PRINT " + print.value + "'";
+			case Instruction.Goto goto_ -> "'GOTO " + lines[goto_.destination] + "'";
+			case Instruction.Nop ignored -> "removed";
+			default -> instruction.getClass().getSimpleName();
+		};
+	}
+}
@@ -0,0 +1,25 @@
+class ParseErrors extends RuntimeException {
+	/**
+	 * The numbers of the lines which failed to parse, ascending, the errors are the suppressed exceptions
+	 */
+	final int[] lines;
+
+	ParseErrors(int[] lines, Throwable[] errors) {
+		super(message(lines, errors));
+		this.lines = lines;
+
+		for (var error : errors) {
+			addSuppressed(error);
+		}
+	}
+
+	private static String message(int[] lines, Throwable[] errors) {
+		var res = new StringBuilder().append(lines.length).append(lines.length == 1 ? " line" : " lines").append(" failed to parse");
+
+		for (int i = 0; i < lines.length; i++) {
+			res.append("\nline ").append(lines[i]).append(": ").append(errors[i].getMessage());
+		}
+
+		return res.toString();
+	}
+}
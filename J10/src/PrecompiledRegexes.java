@@ -0,0 +1,14 @@
+import java.util.regex.Pattern;
+
+class PrecompiledRegexes {
+	final static Pattern NEWLINE = Pattern.compile("(\r?\n)+");
+	final static Pattern LINE = Pattern.compile("(?<index>\\d+) (?<inst>.+)");
+	final static Pattern INSTRUCTION = Pattern.compile("^(?<inst>\\p{Alpha}+)(?<rest>.*?)$");
+	final static Pattern LET = Pattern.compile("^(?<name>\\p{Alpha}+) = (?<expr>.+)$");
+	final static Pattern IF = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<cmp>[=<>]) (?<right>\\p{Alpha}+|-?\\d+) GOTO (?<dest>\\d+)$");
+	final static Pattern INPUT = Pattern.compile("^(?<name>\\p{Alpha}+)$");
+	final static Pattern VARIABLE = Pattern.compile("^(?<name>\\p{Alpha}+)$");
+	final static Pattern STR = Pattern.compile("^(?<quot>[\"'])(?<content>.*?)\\k<quot>$");
+	final static Pattern INT = Pattern.compile("^(?<value>-?\\d+)$");
+	final static Pattern CALCULATION = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<op>[-+/*]) (?<right>\\p{Alpha}+|-?\\d+)$");
+}
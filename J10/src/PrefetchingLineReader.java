@@ -0,0 +1,213 @@
+/**
+ * A {@link ProgrammableCalculatorInterface.LineReader} decorator reading ahead on a background thread into a
+ * bounded ring buffer, so that INPUT does not wait for a slow source unless the program is faster than it.
+ * Lines are parsed as ints while they wait in the buffer.
+ * <br>
+ * The source is read until it returns null or throws. An exception thrown by the source is rethrown by the
+ * read which would have returned the failed line, so reading ahead never fails a program which did not need
+ * the line. The background thread is a daemon thread, stopped by {@link #close()}.
+ */
+class PrefetchingLineReader implements IntLineReader, AutoCloseable {
+	private final ProgrammableCalculatorInterface.LineReader source;
+	private final Thread thread;
+	private final String[] lines;
+	private final int[] values;
+	private final boolean[] parsed;
+	/**
+	 * The number of lines taken from and put into the buffer so far, the buffer holds the lines between them
+	 */
+	private long head = 0;
+	private long tail = 0;
+	/**
+	 * The exception thrown by the source after the last buffered line, or null
+	 */
+	private Throwable error = null;
+	private boolean finished = false;
+	private boolean closed = false;
+	private long readStalls = 0;
+	private long readStallNanos = 0;
+	private long prefetchStalls = 0;
+
+	/**
+	 * @param source   The reader to read ahead from
+	 * @param capacity The maximum number of lines read ahead
+	 */
+	PrefetchingLineReader(ProgrammableCalculatorInterface.LineReader source, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive, got " + capacity);
+		}
+
+		this.source = source;
+		lines = new String[capacity];
+		values = new int[capacity];
+		parsed = new boolean[capacity];
+		thread = new Thread(this::prefetch, "BASIC stdin prefetch");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void prefetch() {
+		while (true) {
+			String line;
+
+			try {
+				line = source.readLine();
+			} catch (RuntimeException | Error e) {
+				finish(e);
+				return;
+			}
+
+			if (line == null) {
+				finish(null);
+				return;
+			}
+
+			var value = 0;
+			var isInt = true;
+
+			try {
+				value = Integer.parseInt(line);
+			} catch (NumberFormatException e) {
+				isInt = false;
+			}
+
+			synchronized (this) {
+				if (tail - head == lines.length) {
+					prefetchStalls++;
+
+					while (tail - head == lines.length && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+
+				if (closed) {
+					return;
+				}
+
+				var at = (int) (tail % lines.length);
+				lines[at] = line;
+				values[at] = value;
+				parsed[at] = isInt;
+				tail++;
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void finish(Throwable error) {
+		if (!closed) {
+			this.error = error;
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until a line is buffered
+	 *
+	 * @return The buffer index of the next line, or -1 at the end of the input
+	 */
+	private int next() {
+		if (head == tail && !finished) {
+			readStalls++;
+			var start = System.nanoTime();
+
+			while (head == tail && !finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for input", e);
+				}
+			}
+
+			readStallNanos += System.nanoTime() - start;
+		}
+
+		if (head == tail) {
+			if (error instanceof Error e) {
+				throw e;
+			} else if (error != null) {
+				throw (RuntimeException) error;
+			}
+
+			return -1;
+		}
+
+		return (int) (head % lines.length);
+	}
+
+	private void advance(int at) {
+		lines[at] = null;
+		head++;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized String readLine() {
+		var at = next();
+
+		if (at < 0) {
+			return null;
+		}
+
+		var res = lines[at];
+		advance(at);
+		return res;
+	}
+
+	@Override
+	public synchronized int readInt() {
+		var at = next();
+
+		if (at < 0) {
+			// Fails the same way as parsing the null returned by readLine()
+			return Integer.parseInt(null);
+		}
+
+		var line = lines[at];
+		var isInt = parsed[at];
+		var value = values[at];
+		advance(at);
+		return isInt ? value : Integer.parseInt(line);
+	}
+
+	/**
+	 * @return How many times a read had to wait for the background thread
+	 */
+	synchronized long getReadStalls() {
+		return readStalls;
+	}
+
+	/**
+	 * @return The total time reads spent waiting for the background thread, in nanoseconds
+	 */
+	synchronized long getReadStallNanos() {
+		return readStallNanos;
+	}
+
+	/**
+	 * @return How many times the background thread had to wait because the buffer was full
+	 */
+	synchronized long getPrefetchStalls() {
+		return prefetchStalls;
+	}
+
+	/**
+	 * Stop reading ahead. Lines which are already buffered can still be read, after them the input ends.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			finished = true;
+			notifyAll();
+		}
+
+		thread.interrupt();
+	}
+}
@@ -0,0 +1,191 @@
+import java.util.*;
+
+/**
+ * Collects how many times every line is executed, and how much time is spent in every subroutine, see
+ * {@link ProgrammableCalculator#setProfiling(boolean)}. The data of all profiled runs of the same program is added up.
+ * <br>
+ * Every executed line is also attributed to the chain of GOSUB targets it was executed in, for
+ * {@link #collapsedStacks()}.
+ */
+class Profiler {
+	/**
+	 * A node in the tree of GOSUB chains
+	 */
+	private static class Frame {
+		final Frame parent;
+		/**
+		 * The line number of the GOSUB target, or -1 for the main program
+		 */
+		final int line;
+		final HashMap<Integer, Frame> children = new HashMap<>();
+		long steps = 0;
+
+		Frame(Frame parent, int line) {
+			this.parent = parent;
+			this.line = line;
+		}
+
+		Frame child(int line) {
+			return children.computeIfAbsent(line, l -> new Frame(this, l));
+		}
+	}
+
+	private long[] counts = new long[0];
+	/**
+	 * The number of calls and total time spent, including nested calls, for every GOSUB target index
+	 */
+	private long[] calls = new long[0];
+	private long[] nanos = new long[0];
+	private int[] lines = new int[0];
+	private final Frame root = new Frame(null, -1);
+	private Frame frame = root;
+	/**
+	 * The start time and target index of every GOSUB entered in the current run which did not return yet
+	 */
+	private long[] starts = new long[16];
+	private int[] targets = new int[16];
+	private int depth = 0;
+
+	/**
+	 * Start a run of a program. The counts are indexed by program index, so they are discarded if the
+	 * program changed since the last run.
+	 *
+	 * @param lines The line number of every program index of the program
+	 */
+	void start(int[] lines) {
+		if (lines != this.lines && !Arrays.equals(lines, this.lines)) {
+			counts = new long[lines.length];
+			calls = new long[lines.length];
+			nanos = new long[lines.length];
+			root.children.clear();
+			root.steps = 0;
+		}
+
+		this.lines = lines;
+		frame = root;
+		depth = 0;
+	}
+
+	void count(int index) {
+		counts[index]++;
+		frame.steps++;
+	}
+
+	/**
+	 * Enter a subroutine
+	 *
+	 * @param index The program index of the GOSUB target
+	 */
+	void enter(int index) {
+		if (depth == starts.length) {
+			starts = Arrays.copyOf(starts, depth * 2);
+			targets = Arrays.copyOf(targets, depth * 2);
+		}
+
+		starts[depth] = System.nanoTime();
+		targets[depth] = index;
+		depth++;
+		calls[index]++;
+		frame = frame.child(lines[index]);
+	}
+
+	/**
+	 * Return from a subroutine
+	 */
+	void exit() {
+		// Returns to a GOSUB from an earlier run are not attributed to any subroutine
+		if (depth == 0) {
+			return;
+		}
+
+		depth--;
+		nanos[targets[depth]] += System.nanoTime() - starts[depth];
+		frame = frame.parent;
+	}
+
+	/**
+	 * End the run, counting the time of the subroutines which did not return
+	 */
+	void stop() {
+		while (depth > 0) {
+			exit();
+		}
+	}
+
+	/**
+	 * @return The executed lines, most executed first, followed by the subroutines, longest first. Empty if
+	 * no line was executed.
+	 */
+	List<String> report() {
+		var res = new ArrayList<String>();
+		var total = 0L;
+
+		for (var count : counts) {
+			total += count;
+		}
+
+		if (total == 0) {
+			return res;
+		}
+
+		for (var index : sorted(counts)) {
+			res.add(String.format(
+					Locale.ROOT,
+					"line %d: %d (%.1f%%)",
+					lines[index],
+					counts[index],
+					100.0 * counts[index] / total
+			));
+		}
+
+		for (var index : sorted(calls)) {
+			res.add(String.format(
+					Locale.ROOT,
+					"GOSUB %d: %d calls, %.3f ms",
+					lines[index],
+					calls[index],
+					nanos[index] / 1e6
+			));
+		}
+
+		return res;
+	}
+
+	/**
+	 * @return The program indices with a non-zero value, by descending value
+	 */
+	private List<Integer> sorted(long[] values) {
+		var res = new ArrayList<Integer>();
+
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != 0) {
+				res.add(i);
+			}
+		}
+
+		res.sort(Comparator.comparingLong((Integer i) -> -values[i]).thenComparingInt(i -> lines[i]));
+		return res;
+	}
+
+	/**
+	 * @return The number of lines executed in every chain of GOSUB targets, in the collapsed stack format
+	 * used by flame graph tools, one {@code main;100;200 42} line per chain
+	 */
+	String collapsedStacks() {
+		var res = new StringBuilder();
+		collapsedStacks(root, "main", res);
+		return res.toString();
+	}
+
+	private static void collapsedStacks(Frame frame, String name, StringBuilder res) {
+		if (frame.steps != 0) {
+			res.append(name).append(' ').append(frame.steps).append('\n');
+		}
+
+		var children = new TreeMap<>(frame.children);
+
+		for (var child : children.values()) {
+			collapsedStacks(child, name + ";" + child.line, res);
+		}
+	}
+}
@@ -1,13 +1,17 @@
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 	static final boolean ASSERTIONS;
-	private final ExecutionContext ctx = new ExecutionContext();
-	private final ArrayList<MaybeUnparsedInstruction> program = new ArrayList<>(128);
-	private final TreeMap<Integer, Integer> lineMappings = new TreeMap<>();
-	private final Stack<Integer> stack = new Stack<>();
+	private CompiledProgram program;
+	private final ExecutionContext ctx;
+	private boolean optimize = false;
+	private CompileCache compileCache = null;
 
 	static {
 		boolean assertions = false;
@@ -15,6 +19,31 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 		ASSERTIONS = assertions;
 	}
 
+	public ProgrammableCalculator() {
+		this(new CompiledProgram());
+	}
+
+	/**
+	 * Create a calculator parsing its programs on the given executor, see {@link CompiledProgram}
+	 *
+	 * @param parseExecutor The executor, for example {@code Runnable::run} to parse every program on the
+	 *                      thread loading it
+	 */
+	public ProgrammableCalculator(Executor parseExecutor) {
+		this(new CompiledProgram(parseExecutor));
+	}
+
+	/**
+	 * Create a calculator running an already loaded program, which can be shared with any number of other
+	 * calculators. Lines loaded afterwards are only added to the program of this calculator.
+	 *
+	 * @param program The program
+	 */
+	ProgrammableCalculator(CompiledProgram program) {
+		this.program = program;
+		ctx = program.newContext();
+	}
+
 	/**
 	 * Metoda ustawia BufferedReader, który pozwala na odczyt kodu źródłowego
 	 * programu.
@@ -23,37 +52,76 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 	 */
 	@Override
 	public void programCodeReader(BufferedReader reader) {
-		var scanner = new Scanner(reader).useDelimiter(PrecompiledRegexes.NEWLINE);
-		var lineRegex = PrecompiledRegexes.LINE;
-
-		SortedMap<Integer, MaybeUnparsedInstruction> syncProgram = Collections.synchronizedSortedMap(new TreeMap<>());
-		scanner.tokens().parallel().forEach((line) -> {
-			var matcher = lineRegex.matcher(line);
-			var matchRes = matcher.matches();
-			assert matchRes;
+		program = program.append(reader, optimize);
+	}
 
-			var index = Integer.valueOf(matcher.group("index"));
-			var instruction = new MaybeUnparsedInstruction(matcher.group("inst"));
+	/**
+	 * Load the program from a file. The file is memory-mapped and split into lines without going through
+	 * a {@link Scanner}, which is much faster for very large programs.
+	 *
+	 * @param path The path of the BASIC source file
+	 * @throws IOException If the file can not be read
+	 */
+	public void programCodeReader(Path path) throws IOException {
+		program = program.append(path, optimize, compileCache);
+	}
 
-			if (ASSERTIONS && syncProgram.containsKey(index)) {
-				throw new SyntaxError(index + " ...", "Duplicated line number");
-			}
+	/**
+	 * Keep the parsed form of programs loaded from files afterwards in a cache directory, so that loading the
+	 * same source again skips parsing, also in another process. The cache is only used when the program is
+	 * loaded into an empty calculator, see {@link CompileCache}.
+	 *
+	 * @param directory The cache directory, created when the first entry is written, or null to disable the
+	 *                  cache
+	 */
+	public void setCompileCache(Path directory) {
+		compileCache = directory == null ? null : new CompileCache(directory);
+	}
 
-			syncProgram.put(index, instruction);
-		});
+	/**
+	 * Add or replace a single line of the program, without parsing the whole program again, see
+	 * {@link CompiledProgram#withLine(int, CharSequence, boolean)}
+	 *
+	 * @param line        The line number
+	 * @param instruction The instruction, without the line number
+	 */
+	public void setLine(int line, String instruction) {
+		if (line < 0) {
+			throw new IllegalArgumentException("Line numbers can not be negative, got " + line);
+		}
 
-		for (var entry: syncProgram.entrySet()) {
-			lineMappings.put(entry.getKey(), program.size());
-			program.add(entry.getValue());
+		if (instruction.isBlank()) {
+			throw new IllegalArgumentException("The instruction of line " + line + " is empty");
 		}
 
-		new Thread(() -> program.parallelStream().forEach(inst -> {
-			try {
-				inst.parse(lineMappings);
-			} catch (Exception ignored) {
-				// Ignore all errors when pre-parsing
-			}
-		})).start();
+		program = program.withLine(line, instruction, optimize);
+	}
+
+	/**
+	 * Remove a single line of the program, does nothing if there is no such line. GOTOs, IFs and GOSUBs to the
+	 * line fail when they are executed.
+	 *
+	 * @param line The line number
+	 */
+	public void removeLine(int line) {
+		program = program.withLine(line, null, optimize);
+	}
+
+	/**
+	 * Wait until the loaded program is parsed. Runs wait for this anyway, and only fail once they execute a
+	 * line which does not parse, this reports all such lines at once.
+	 *
+	 * @throws ParseErrors If any line failed to parse
+	 */
+	public void awaitParsed() {
+		program.awaitParsed();
+	}
+
+	/**
+	 * @return The loaded program, which can be shared with other calculators
+	 */
+	CompiledProgram getCompiledProgram() {
+		return program;
 	}
 
 	/**
@@ -77,625 +145,210 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 	}
 
 	/**
-	 * Rozpoczęcie realizacji kodu programu od wskazanego numeru linii.
+	 * Buffer the output of PRINT and write it to the given sink in chunks, instead of calling the
+	 * {@link LinePrinter} once for every line. The buffer is flushed when it is full, before INPUT and at the
+	 * end of every run, also when the run fails. Use {@link BulkPrinter#of(LinePrinter)} to buffer the output
+	 * to a {@link LinePrinter}.
 	 *
-	 * @param line numer linii programu
+	 * @param output The sink, or null to print every line directly to the stdout again
 	 */
-	@Override
-	public void run(int line) {
-		int pc = lineMappings.get(line);
-
-		while (pc < program.size()) {
-			var upInstruction = program.get(pc);
-
-			if (upInstruction == null) {
-				return;
-			}
-
-			var instruction = upInstruction.get(lineMappings);
-
-			try {
-				var next = instruction.run(ctx);
-
-				switch (next) {
-					case Integer.MAX_VALUE -> {
-						pc += 1;
-					}
-					case Integer.MIN_VALUE -> {
-						try {
-							pc = stack.pop();
-						} catch (EmptyStackException e) {
-							throw new ReturnError(pc);
-						}
-					}
-					default -> {
-						if (next >= 0) {
-							pc = next;
-						} else {
-							stack.push(pc + 1);
-							pc = -next - 1;
-						}
-					}
-				}
-			} catch (StopRun stop) {
-				return;
-			}
-		}
-	}
-}
-
-class MaybeUnparsedInstruction {
-	String source;
-	Instruction parsed;
-
-	MaybeUnparsedInstruction(String source) {
-		this.source = source;
-		parsed = null;
-	}
-
-	Instruction get(NavigableMap<Integer, Integer> lineMappings) {
-		if (parsed == null) {
-			parse(lineMappings);
-		}
-
-		return parsed;
+	public void setBufferedStdout(BulkPrinter output) {
+		ctx.flush();
+		ctx.bulkStdout = output;
 	}
 
-	synchronized void parse(NavigableMap<Integer, Integer> lineMappings) {
-		if (parsed == null) {
-			parsed = Instruction.parse(source, lineMappings);
-		}
-	}
-}
-
-class ExecutionContext {
-	ProgrammableCalculatorInterface.LineReader stdin;
-	ProgrammableCalculatorInterface.LinePrinter stdout;
-	HashMap<String, Integer> vars = new HashMap<>(32);
-
-	int getVar(String name) {
-		var value = vars.get(name);
-
-		if (value == null) {
-			throw new ExpressionValueException("no variable '" + name + "' defined");
-		}
-
-		return value;
-	}
-
-	void setVar(String name, int value) {
-		vars.put(name, value);
-	}
-
-	String read() {
-		return stdin.readLine();
-	}
-
-	void print(String line) {
-		stdout.printLine(line);
-	}
-}
-
-class PrecompiledRegexes {
-	final static Pattern NEWLINE = Pattern.compile("(\r?\n)+");
-	final static Pattern LINE = Pattern.compile("(?<index>\\d+) (?<inst>.+)");
-	final static Pattern INSTRUCTION = Pattern.compile("^(?<inst>\\p{Alpha}+)(?<rest>.*?)$");
-	final static Pattern LET = Pattern.compile("^(?<name>\\p{Alpha}+) = (?<expr>.+)$");
-	final static Pattern IF = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<cmp>[=<>]) (?<right>\\p{Alpha}+|-?\\d+) GOTO (?<dest>\\d+)$");
-	final static Pattern INPUT = Pattern.compile("^(?<name>\\p{Alpha}+)$");
-	final static Pattern VARIABLE = Pattern.compile("^(?<name>\\p{Alpha}+)$");
-	final static Pattern STR = Pattern.compile("^(?<quot>[\"'])(?<content>.*?)\\k<quot>$");
-	final static Pattern INT = Pattern.compile("^(?<value>-?\\d+)$");
-	final static Pattern CALCULATION = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<op>[-+/*]) (?<right>\\p{Alpha}+|-?\\d+)$");
-}
-
-enum Comparison {
-	Eq {
-		@Override
-		boolean eval(Expression left, Expression right, ExecutionContext ctx) {
-			return left.intValue(ctx) == right.intValue(ctx);
-		}
-	}, Lt {
-		@Override
-		boolean eval(Expression left, Expression right, ExecutionContext ctx) {
-			return left.intValue(ctx) < right.intValue(ctx);
-		}
-	}, Gt {
-		@Override
-		boolean eval(Expression left, Expression right, ExecutionContext ctx) {
-			return left.intValue(ctx) > right.intValue(ctx);
-		}
-	};
-
-	abstract boolean eval(Expression left, Expression right, ExecutionContext ctx);
-}
-
-interface Instruction {
-	static Instruction parse(String line, NavigableMap<Integer, Integer> lineMappings) {
-		var instRegex = PrecompiledRegexes.INSTRUCTION;
-
-		try {
-			var matcher = instRegex.matcher(line);
-			var matchRes = matcher.matches();
-			assert matchRes;
-
-			var inst = matcher.group("inst").toUpperCase(Locale.ROOT);
-			var rest = matcher.group("rest").trim();
-
-			return switch (inst) {
-				case "LET" -> Let.parse(rest);
-				case "PRINT" -> Print.parse(rest);
-				case "GOTO" -> Goto.parse(rest, lineMappings);
-				case "END" -> End.parse(rest);
-				case "IF" -> If.parse(rest, lineMappings);
-				case "INPUT" -> Input.parse(rest);
-				case "GOSUB" -> Gosub.parse(rest, lineMappings);
-				case "RETURN" -> Return.parse(rest);
-				default -> throw new SyntaxError(line);
-			};
-		} catch (SyntaxError e) {
-			throw new SyntaxError(line, e.getMessage());
-		} catch (Exception e) {
-			throw new SyntaxError(line);
-		}
+	/**
+	 * Select how the program is executed by {@link #run(int)}. Runs with checked arithmetic, profiling or an
+	 * execution trace, and runs while a flight recording has {@code basic.Gosub} events enabled, use the
+	 * {@link ExecutionMode#TREE_WALKER} instead. The {@code basic.Run} event reports the mode actually used.
+	 *
+	 * @param mode The execution mode
+	 */
+	public void setExecutionMode(ExecutionMode mode) {
+		ctx.mode = Objects.requireNonNull(mode);
 	}
 
 	/**
-	 * Run the instruction
+	 * Enable or disable checked arithmetic. With it, a calculation which overflows fails with an
+	 * {@link ArithmeticOverflowError} reporting its line, instead of wrapping around. Checked runs always use
+	 * the {@link ExecutionMode#TREE_WALKER}, on a copy of the program built on the first checked run, so
+	 * unchecked runs are not slowed down.
 	 *
-	 * @param ctx The execution context
-	 * @return An int with the following meanings:<br> <table>
-	 * <tr> <td>value</td> <td>meaning</td> </tr>
-	 * <tr> <td>MIN</td> <td>Return from a subroutine</td> </tr>
-	 * <tr> <td>MAX</td> <td>Continue on the next line</td> </tr>
-	 * <tr> <td>>= 0, < MAX</td> <td>Go to the returned line</td> </tr>
-	 * <tr> <td>> MIN, < 0</td> <td>Go to a subroutine at line -return - 1</td> </tr>
-	 * </table>
-	 * @throws StopRun To stop the execution of the program
+	 * @param checked Whether to check the following runs
 	 */
-	int run(ExecutionContext ctx) throws StopRun;
-
-	class Let implements Instruction {
-		String name;
-		Expression value;
-
-		static Instruction parse(String line) {
-			var res = new Let();
-
-			var instRegex = PrecompiledRegexes.LET;
-
-			try {
-				var matcher = instRegex.matcher(line);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				res.name = matcher.group("name").toLowerCase(Locale.ROOT);
-				res.value = Expression.parse(matcher.group("expr"));
-
-				return res;
-			} catch (SyntaxError e) {
-				throw new SyntaxError(line, e.getMessage());
-			} catch (Exception e) {
-				throw new SyntaxError(line);
-			}
-		}
-
-		public int run(ExecutionContext ctx) {
-			ctx.setVar(name, value.intValue(ctx));
-			return Integer.MAX_VALUE;
-		}
+	public void setCheckedArithmetic(boolean checked) {
+		ctx.checkedArithmetic = checked;
 	}
 
-	class Print implements Instruction {
-		Expression value;
-
-		static Instruction parse(String line) {
-			var res = new Print();
-
-			try {
-				res.value = Expression.parse(line);
-				return res;
-			} catch (SyntaxError e) {
-				throw new SyntaxError(line, e.getMessage());
-			}
-		}
-
-		public int run(ExecutionContext ctx) {
-			ctx.print(value.stringValue(ctx));
-			return Integer.MAX_VALUE;
-		}
+	/**
+	 * Enable or disable the {@link Optimizer} for programs loaded afterwards. It is disabled by default, so
+	 * that the results of optimised and unoptimised runs can be compared.
+	 *
+	 * @param optimize Whether to optimise the program
+	 */
+	public void setOptimize(boolean optimize) {
+		this.optimize = optimize;
 	}
 
-	class Goto implements Instruction {
-		int destination;
-
-		static Instruction parse(String line, NavigableMap<Integer, Integer> lineMappings) {
-			var res = new Goto();
-
-			try {
-				var dest = Integer.parseInt(line);
-				var mappedDest = lineMappings.get(dest);
-
-				if (mappedDest == null) {
-					throw new GotoError(dest);
-				}
-
-				res.destination = mappedDest;
-				return res;
-			} catch (NumberFormatException e) {
-				throw new SyntaxError(line, e.getMessage());
-			}
-		}
-
-		public int run(ExecutionContext ctx) {
-			return destination;
-		}
+	/**
+	 * @return A description of every change made by the {@link Optimizer}, empty if it is disabled
+	 */
+	public List<String> getOptimizationReport() {
+		return program.optimizationReport();
 	}
 
-	class End implements Instruction {
-		static Instruction parse(String line) {
-			if (!line.isEmpty()) {
-				throw new SyntaxError(line);
-			}
-
-			return new End();
-		}
-
-		public int run(ExecutionContext ctx) throws StopRun {
-			throw new StopRun();
-		}
+	/**
+	 * @return Every read of a variable which may not be set when the program is run from its first line, as
+	 * {@code line 20: variable 'x' may not be defined}. Waits until the program is parsed.
+	 */
+	public List<String> getUndefinedVariableWarnings() {
+		return program.undefinedVariableWarnings();
 	}
 
-	class If implements Instruction {
-		Expression left;
-		Expression right;
-		Comparison cmp;
-		int destination;
-
-		static Instruction parse(String line, Map<Integer, Integer> lineMappings) {
-			var res = new If();
-
-			var instRegex = PrecompiledRegexes.IF;
-
-			try {
-				var matcher = instRegex.matcher(line);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				res.left = Expression.parse(matcher.group("left"));
-				res.right = Expression.parse(matcher.group("right"));
-
-				var dest = Integer.parseInt(matcher.group("dest"));
-				var mappedDest = lineMappings.get(dest);
-
-				if (mappedDest == null) {
-					throw new SyntaxError(line, "No such destination: " + dest);
-				}
-
-				res.destination = mappedDest;
-
-				switch (matcher.group("cmp")) {
-					case "=": {
-						res.cmp = Comparison.Eq;
-						return res;
-					}
-					case ">": {
-						res.cmp = Comparison.Gt;
-						return res;
-					}
-					case "<": {
-						res.cmp = Comparison.Lt;
-						return res;
-					}
-					default: {
-						throw new SyntaxError(line, "Unknown comparison operator '" + matcher.group("cmp") + "'");
-					}
-				}
-			} catch (SyntaxError e) {
-				throw new SyntaxError(line, e.getMessage());
-			} catch (Exception e) {
-				throw new SyntaxError(line);
-			}
-		}
-
-		public int run(ExecutionContext ctx) {
-			if (cmp.eval(left, right, ctx)) {
-				return destination;
-			} else {
-				return Integer.MAX_VALUE;
-			}
-		}
+	/**
+	 * Enable or disable profiling. Profiled runs always use the {@link ExecutionMode#TREE_WALKER}, without
+	 * superinstructions. Enabling profiling, or changing the program, discards the data of earlier profiled
+	 * runs.
+	 *
+	 * @param profiling Whether to profile the following runs
+	 */
+	public void setProfiling(boolean profiling) {
+		ctx.profiler = profiling ? new Profiler() : null;
 	}
 
-	class Input implements Instruction {
-		String name;
-
-		static Instruction parse(String line) {
-			var res = new Input();
-
-			var instRegex = PrecompiledRegexes.INPUT;
-
-			try {
-				var matcher = instRegex.matcher(line);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				res.name = matcher.group("name").toLowerCase(Locale.ROOT);
-				return res;
-			} catch (Exception e) {
-				throw new SyntaxError(line);
-			}
-		}
-
-		public int run(ExecutionContext ctx) {
-			var input = Integer.parseInt(ctx.read());
-			ctx.setVar(name, input);
-			return Integer.MAX_VALUE;
-		}
+	/**
+	 * @return The number of executions of every line, most executed first, followed by the number of calls
+	 * and the time spent in every GOSUB target, longest first. Empty if profiling is disabled.
+	 */
+	public List<String> getProfileReport() {
+		return ctx.profiler == null ? List.of() : ctx.profiler.report();
 	}
 
-	class Gosub implements Instruction {
-		int destination;
-
-		static Instruction parse(String line, Map<Integer, Integer> lineMappings) {
-			var res = new Gosub();
-
-			try {
-				var dest = Integer.parseInt(line);
-				var mappedDest = lineMappings.get(dest);
-
-				if (mappedDest == null) {
-					throw new GotoError(dest);
-				}
-
-				res.destination = -mappedDest - 1;
-				return res;
-			} catch (NumberFormatException e) {
-				throw new SyntaxError(line, e.getMessage());
-			}
-		}
-
-		public int run(ExecutionContext ctx) {
-			return destination;
-		}
+	/**
+	 * @return The number of lines executed in every chain of GOSUB targets, in the collapsed stack format
+	 * read by flame graph tools. Empty if profiling is disabled.
+	 */
+	public String getCollapsedStacks() {
+		return ctx.profiler == null ? "" : ctx.profiler.collapsedStacks();
 	}
 
-	class Return implements Instruction {
-		static Instruction parse(String line) {
-			if (!line.isEmpty()) {
-				throw new SyntaxError(line);
-			}
-
-			return new Return();
+	/**
+	 * Keep the last lines executed by every run, so that when a run fails its exception has an
+	 * {@link ExecutionTraceDump} of them as a suppressed exception. Traced runs always use the
+	 * {@link ExecutionMode#TREE_WALKER}, without superinstructions, and are not traced while profiling.
+	 *
+	 * @param size   The number of lines to keep, 0 to disable tracing
+	 * @param values Whether to also keep the values set by LETs
+	 */
+	public void setExecutionTrace(int size, boolean values) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative trace size " + size);
 		}
 
-		public int run(ExecutionContext ctx) {
-			return Integer.MIN_VALUE;
-		}
+		ctx.trace = size == 0 ? null : new ExecutionTrace(size, values);
 	}
-}
 
-interface Expression {
-	static Expression parse(String expr) {
-		if (expr.matches("^\\p{Alpha}+$")) {
-			return Variable.parse(expr);
-		} else if (expr.matches("^(?<quot>[\"']).*?\\k<quot>$")) {
-			return Str.parse(expr);
-		} else if (expr.matches("^-?\\d+$")) {
-			return Int.parse(expr);
-		} else if (expr.matches("^(\\p{Alpha}+|-?\\d+) [-+/*] (\\p{Alpha}+|-?\\d+)$")) {
-			return Calculation.parse(expr);
+	/**
+	 * Limit the number of lines executed by every run, longer runs fail with a {@link RunStoppedError}
+	 *
+	 * @param limit The maximum number of lines, {@link Long#MAX_VALUE} for no limit
+	 */
+	public void setInstructionLimit(long limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("The instruction limit can not be negative, got " + limit);
 		}
 
-		throw new SyntaxError(expr);
+		ctx.maxSteps = limit;
 	}
 
-	int intValue(ExecutionContext ctx);
-
-	String stringValue(ExecutionContext ctx);
-
-	class Variable implements Expression {
-		String name;
-
-		static Variable parse(String expr) {
-			var pattern = PrecompiledRegexes.VARIABLE;
-
-			try {
-				var matcher = pattern.matcher(expr);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				var res = new Variable();
-				res.name = matcher.group("name").toLowerCase(Locale.ROOT);
-				return res;
-			} catch (Exception e) {
-				throw new SyntaxError(expr);
-			}
-		}
-
-		public int intValue(ExecutionContext ctx) {
-			return ctx.getVar(name);
+	/**
+	 * Limit the duration of every run, longer runs fail with a {@link RunStoppedError}
+	 *
+	 * @param timeout The maximum duration, or null for no limit
+	 */
+	public void setTimeout(Duration timeout) {
+		if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+			throw new IllegalArgumentException("The timeout must be positive, got " + timeout);
 		}
 
-		public String stringValue(ExecutionContext ctx) {
-			return Integer.toString(intValue(ctx));
-		}
+		ctx.timeout = timeout == null ? 0 : timeout.toNanos();
 	}
 
-	class Str implements Expression {
-		String content;
-
-		static Str parse(String expr) {
-			var pattern = PrecompiledRegexes.STR;
-
-			try {
-				var matcher = pattern.matcher(expr);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				var res = new Str();
-				res.content = matcher.group("content");
-				return res;
-			} catch (Exception e) {
-				throw new SyntaxError(expr);
-			}
-		}
-
-		public int intValue(ExecutionContext ctx) {
-			try {
-				return Integer.parseInt(content);
-			} catch (NumberFormatException e) {
-				throw new ExpressionValueException("string '" + content + "' can not be converted to an integer");
-			}
-		}
-
-		public String stringValue(ExecutionContext ctx) {
-			return content;
-		}
+	/**
+	 * Stop the current run with a {@link RunStoppedError}, or the next one if no run is in progress. Can be
+	 * called from any thread, interrupting the thread running the program has the same effect.
+	 */
+	public void cancel() {
+		ctx.cancelled = true;
 	}
 
-	class Int implements Expression {
-		int value;
-
-		static Int parse(String expr) {
-			var pattern = PrecompiledRegexes.INT;
-
-			try {
-				var matcher = pattern.matcher(expr);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				var res = new Int();
-				res.value = Integer.parseInt(matcher.group("value"));
-				return res;
-			} catch (Exception e) {
-				throw new SyntaxError(expr);
-			}
-		}
-
-		public int intValue(ExecutionContext ctx) {
-			return value;
+	/**
+	 * Take {@link Snapshot}s of the runs of this calculator, every given number of lines and whenever
+	 * {@link #requestSnapshot()} is called. Snapshots are taken before a line, after flushing the buffered
+	 * output, so a run resumed from a snapshot prints exactly what the original run printed after it.
+	 *
+	 * @param sink     The receiver of the snapshots, called on the thread running the program, or null to
+	 *                 disable snapshots
+	 * @param interval The number of lines between two snapshots, 0 to only take them on request
+	 */
+	public void setSnapshots(Consumer<Snapshot> sink, long interval) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("The snapshot interval can not be negative, got " + interval);
 		}
 
-		public String stringValue(ExecutionContext ctx) {
-			return Integer.toString(intValue(ctx));
-		}
+		ctx.snapshots = sink;
+		ctx.snapshotInterval = sink == null ? 0 : interval;
 	}
 
-	class Calculation implements Expression {
-		Expression left;
-		Operand operand;
-		Expression right;
-
-		static Calculation parse(String expr) {
-			var pattern = PrecompiledRegexes.CALCULATION;
-
-			try {
-				var matcher = pattern.matcher(expr);
-				var matchRes = matcher.matches();
-				assert matchRes;
-
-				var res = new Calculation();
-				res.left = Expression.parse(matcher.group("left"));
-				res.right = Expression.parse(matcher.group("right"));
-
-				switch (matcher.group("op")) {
-					case "+": {
-						res.operand = Operand.Add;
-						return res;
-					}
-					case "-": {
-						res.operand = Operand.Sub;
-						return res;
-					}
-					case "*": {
-						res.operand = Operand.Mul;
-						return res;
-					}
-					case "/": {
-						res.operand = Operand.Div;
-						return res;
-					}
-					default: {
-						throw new SyntaxError(expr, "Unknown operand '" + matcher.group("op") + "'");
-					}
-				}
-			} catch (SyntaxError e) {
-				throw new SyntaxError(expr, e.getMessage());
-			} catch (Exception e) {
-				throw new SyntaxError(expr);
-			}
-		}
-
-		public int intValue(ExecutionContext ctx) {
-			return operand.calc(left, right, ctx);
-		}
-
-		public String stringValue(ExecutionContext ctx) {
-			return Integer.toString(intValue(ctx));
-		}
-
-		enum Operand {
-			Add {
-				@Override
-				int calc(Expression left, Expression right, ExecutionContext ctx) {
-					return left.intValue(ctx) + right.intValue(ctx);
-				}
-			}, Sub {
-				@Override
-				int calc(Expression left, Expression right, ExecutionContext ctx) {
-					return left.intValue(ctx) - right.intValue(ctx);
-				}
-			}, Mul {
-				@Override
-				int calc(Expression left, Expression right, ExecutionContext ctx) {
-					return left.intValue(ctx) * right.intValue(ctx);
-				}
-			}, Div {
-				@Override
-				int calc(Expression left, Expression right, ExecutionContext ctx) {
-					return left.intValue(ctx) / right.intValue(ctx);
-				}
-			};
-
-			abstract int calc(Expression left, Expression right, ExecutionContext ctx);
+	/**
+	 * Take a snapshot of the current run within the next {@link ExecutionContext#CHECK_INTERVAL} lines, or
+	 * at the start of the next run if no run is in progress. Can be called from any thread, also directly
+	 * before {@link #cancel()} to stop a run and keep its state.
+	 *
+	 * @throws IllegalStateException If snapshots are disabled
+	 */
+	public void requestSnapshot() {
+		if (ctx.snapshots == null) {
+			throw new IllegalStateException("Snapshots are disabled");
 		}
-	}
-}
 
-class StopRun extends Exception {
-}
-
-class ExpressionValueException extends RuntimeException {
-	ExpressionValueException(String msg) {
-		super("Invalid BASIC expression: " + msg);
+		ctx.snapshotRequested = true;
 	}
-}
 
-class SyntaxError extends RuntimeException {
-	SyntaxError(String line) {
-		super("BASIC syntax error in '" + line + "'");
-	}
-
-	SyntaxError(String line, String context) {
-		super("BASIC syntax error in '" + line + "'\nCaused by: " + context);
+	/**
+	 * Continue a run from a snapshot of the same program. The variables and the GOSUB stack are replaced
+	 * with the ones from the snapshot, stdin continues wherever it currently is.
+	 *
+	 * @param snapshot The snapshot
+	 * @throws IllegalArgumentException If the snapshot is of a different program or damaged
+	 */
+	public void resume(Snapshot snapshot) {
+		program.resume(snapshot, ctx);
 	}
-}
 
-class GotoError extends RuntimeException {
-	GotoError(int destination) {
-		super("GOTO error: no such destination " + destination);
+	/**
+	 * Limit the number of nested GOSUBs, deeper calls fail with a {@link GosubOverflowError}
+	 *
+	 * @param depth The maximum depth, {@link ReturnStack#DEFAULT_MAX_DEPTH} by default
+	 */
+	public void setMaxStackDepth(int depth) {
+		ctx.stack.maxDepth(depth);
 	}
-}
 
-class GosubError extends RuntimeException {
-	GosubError(int destination) {
-		super("GOSUB error: no such destination " + destination);
+	/**
+	 * @return The number of GOSUBs which have not returned yet
+	 */
+	public int getStackDepth() {
+		return ctx.stack.size;
 	}
-}
 
-class ReturnError extends RuntimeException {
-	ReturnError(int line) {
-		super("RETURN error in line " + line + ": the stack is empty");
+	/**
+	 * Rozpoczęcie realizacji kodu programu od wskazanego numeru linii.
+	 *
+	 * @param line numer linii programu
+	 */
+	@Override
+	public void run(int line) {
+		program.run(line, ctx);
 	}
 }
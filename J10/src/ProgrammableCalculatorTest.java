@@ -1,10 +1,15 @@
 import java.io.*;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 
 class StringLineReader implements ProgrammableCalculatorInterface.LineReader {
 	List<String> lines;
@@ -472,4 +477,1628 @@ class ProgrammableCalculatorTest {
 			"END"
 		));
 	}
+
+	@org.junit.jupiter.api.Test
+	void bytecode() throws IOException {
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			var stdout = new StringLinePrinter();
+			calc.setExecutionMode(mode);
+			calc.setStdin(new StringLineReader(Files.readString(Path.of("./program.stdin"))));
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new FileReader("./program.basic")));
+
+			calc.run(1);
+
+			assert stdout.lines.equals(List.of(Files.readString(Path.of("./program.stdout")).split("\r?\n"))) : mode;
+		}
+
+		String program = """
+				10 GOTO 80
+				20 LET A = A + 1
+				25 LET B = B - 1
+				30 RETURN
+				40 PRINT "ZMIENNE"
+				45 PRINT A
+				50 PRINT B * 2
+				55 RETURN
+				60 THIS IS NOT BASIC
+				80 LET A = 100
+				85 LET B = '120'
+				87 GOSUB 40
+				90 GOSUB 20
+				95 GOSUB 40
+				""";
+
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setExecutionMode(ExecutionMode.BYTECODE);
+		calc.setStdin(new StringLineReader(""));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+		calc.run(10);
+
+		assert stdout.lines.equals(List.of("ZMIENNE", "100", "240", "ZMIENNE", "101", "238"));
+
+		try {
+			calc.run(30);
+			assert false;
+		} catch (ReturnError e) {
+			assert e.getMessage().equals("RETURN error in line 30: the stack is empty") : e.getMessage();
+		}
+
+		try {
+			calc.run(60);
+			assert false;
+		} catch (SyntaxError ignored) {
+		}
+
+		// Every specialised opcode runs like the tree walker
+		String specialised = """
+				10 LET n = 3
+				20 LET i = 0
+				30 LET i = 1 + i
+				40 IF i < n GOTO 30
+				50 LET j = i
+				60 LET j = j - 1
+				70 IF 0 < j GOTO 60
+				80 PRINT i
+				90 LET n = n + 2
+				100 IF n = i GOTO 130
+				110 LET i = i + 1
+				120 IF i < n GOTO 100
+				130 PRINT j
+				140 PRINT n - i
+				""";
+
+		var outputs = new ArrayList<List<String>>();
+
+		for (var mode : List.of(ExecutionMode.TREE_WALKER, ExecutionMode.BYTECODE)) {
+			calc = new ProgrammableCalculator();
+			stdout = new StringLinePrinter();
+			calc.setExecutionMode(mode);
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new StringReader(specialised)));
+			calc.run(10);
+			outputs.add(stdout.lines);
+		}
+
+		assert outputs.get(0).equals(List.of("3", "0", "0")) : outputs;
+		assert outputs.get(1).equals(outputs.get(0)) : outputs;
+
+		// With assertions enabled the regex parser fails on this line with an AssertionError
+		calc = new ProgrammableCalculator();
+		stdout = new StringLinePrinter();
+		calc.setExecutionMode(ExecutionMode.BYTECODE);
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader("10 PRINT 1\n20 END\n30 !!!\n")));
+
+		calc.run(10);
+
+		assert stdout.lines.equals(List.of("1")) : stdout.lines;
+
+		try {
+			calc.run(30);
+			assert false;
+		} catch (SyntaxError | AssertionError ignored) {
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void undefinedVariable() {
+		String program = """
+				10 LET a = 1
+				20 LET A = a + b
+				""";
+
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			calc.setExecutionMode(mode);
+			calc.setStdin(new StringLineReader(""));
+			calc.setStdout(new StringLinePrinter());
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (ExpressionValueException e) {
+				assert e.getMessage().equals("Invalid BASIC expression: no variable 'b' defined") : e.getMessage();
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void jit() {
+		String program = """
+				10 GOSUB 100
+				20 PRINT x
+				30 LET x = x - 1
+				40 IF x > 0 GOTO 20
+				50 END
+				100 LET x = 3
+				110 RETURN
+				""";
+
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setExecutionMode(ExecutionMode.JIT);
+		calc.setStdin(new StringLineReader(""));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+		calc.run(10);
+
+		assert stdout.lines.equals(List.of("3", "2", "1"));
+
+		try {
+			calc.run(110);
+			assert false;
+		} catch (ReturnError e) {
+			assert e.getMessage().equals("RETURN error in line 110: the stack is empty") : e.getMessage();
+		}
+
+		// The syntax error must not be reported before line 60 is reached, so this falls back to the interpreter
+		calc = new ProgrammableCalculator();
+		stdout = new StringLinePrinter();
+		calc.setExecutionMode(ExecutionMode.JIT);
+		calc.setStdin(new StringLineReader(""));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader(program + "60 THIS IS NOT BASIC\n")));
+
+		calc.run(10);
+
+		assert stdout.lines.equals(List.of("3", "2", "1"));
+
+		// With assertions enabled the regex parser fails on line 60 with an AssertionError
+		for (var optimize : new boolean[]{false, true}) {
+			calc = new ProgrammableCalculator();
+			stdout = new StringLinePrinter();
+			calc.setExecutionMode(ExecutionMode.JIT);
+			calc.setOptimize(optimize);
+			calc.setStdin(new StringLineReader(""));
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new StringReader(program + "60 !!!\n")));
+
+			calc.run(10);
+
+			assert stdout.lines.equals(List.of("3", "2", "1")) : optimize;
+
+			try {
+				calc.run(60);
+				assert false;
+			} catch (SyntaxError | AssertionError ignored) {
+			}
+		}
+
+		// HotSpot does not compile methods larger than 8000 bytes, so such programs stay in the tree walker
+		for (var size : new int[]{20, 600}) {
+			var source = new StringBuilder("1 LET i = 0\n");
+			var lines = new ArrayList<MaybeUnparsedInstruction>(List.of(new MaybeUnparsedInstruction("LET i = 0")));
+			var lineMappings = new TreeMap<Integer, Integer>(java.util.Map.of(1, 0));
+
+			for (int line = 2; line < size; line++) {
+				source.append(line).append(" LET i = i + 1\n");
+				lines.add(new MaybeUnparsedInstruction("LET i = i + 1"));
+				lineMappings.put(line, line - 1);
+			}
+
+			source.append(size).append(" PRINT i\n");
+			lines.add(new MaybeUnparsedInstruction("PRINT i"));
+			lineMappings.put(size, size - 1);
+
+			assert (JitCompiler.compile(lines, lineMappings, new SymbolTable()) == null) == (size == 600) : size;
+
+			calc = new ProgrammableCalculator();
+			stdout = new StringLinePrinter();
+			calc.setExecutionMode(ExecutionMode.JIT);
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new StringReader(source.toString())));
+			calc.run(1);
+
+			assert stdout.lines.equals(List.of(String.valueOf(size - 2))) : stdout.lines;
+		}
+	}
+
+	static String tree(Object node) {
+		if (node == null || node instanceof String || node instanceof Number || node instanceof Boolean || node instanceof Enum<?>) {
+			return String.valueOf(node);
+		}
+
+		var res = new StringBuilder(node.getClass().getSimpleName()).append('(');
+
+		for (var type = node.getClass(); type != Object.class; type = type.getSuperclass()) {
+			for (var field : type.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+
+				try {
+					field.setAccessible(true);
+					res.append(field.getName()).append('=').append(tree(field.get(node))).append(' ');
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+
+		return res.append(')').toString();
+	}
+
+	@org.junit.jupiter.api.Test
+	void parser() {
+		var templates = List.of(
+				"LET a = b + %d",
+				"let B = -%d * cc",
+				"PRINT \"line %d: '%d'\"",
+				"print 'x%d'",
+				"PRINT x",
+				"GOTO %2$d",
+				"GOSUB   %2$d  ",
+				"IF a < -%d GOTO 0",
+				"IF %d = x GOTO %d",
+				"INPUT xyz",
+				"RETURN",
+				"END",
+				"LET a = %d / 7",
+				"LET a = \"%d\""
+		);
+		var invalid = List.of(
+				"LET a = b +",
+				"LETa = 1",
+				"PRINT",
+				"PRINT a + \"b\"",
+				"GOTO 12345678",
+				"GOTO x",
+				"IF a < b goto 0",
+				"IF a <= b GOTO 0",
+				"LET a = 99999999999",
+				"RETURN 5",
+				"INPUT 5"
+		);
+
+		var lineMappings = new TreeMap<Integer, Integer>();
+		var lines = new ArrayList<String>();
+
+		for (int i = 0; i < 10_000; i++) {
+			lineMappings.put(i * 10, i);
+			lines.add(String.format(templates.get(i % templates.size()), i, i * 10));
+		}
+
+		var symbols = new SymbolTable();
+
+		for (var line : lines) {
+			assert tree(Instruction.parse(line, lineMappings, symbols)).equals(tree(BasicParser.parse(line, lineMappings, symbols))) : line;
+		}
+
+		for (var line : invalid) {
+			String expected = null;
+			String actual = null;
+			// Lines the hand-written parser rejects register the same variables as with the regex parser alone
+			var regexSymbols = new SymbolTable();
+			var handSymbols = new SymbolTable();
+
+			// The regex parser fails its assertions on some lines when they are enabled
+			try {
+				Instruction.parse(line, lineMappings, regexSymbols);
+			} catch (SyntaxError | AssertionError e) {
+				expected = e.toString();
+			}
+
+			try {
+				BasicParser.parse(line, lineMappings, handSymbols);
+			} catch (SyntaxError | AssertionError e) {
+				actual = e.toString();
+			}
+
+			assert expected != null && expected.equals(actual) : line;
+			assert handSymbols.size() == regexSymbols.size() : line;
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void programFromPath() throws IOException {
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setStdin(new StringLineReader(Files.readString(Path.of("./program.stdin"))));
+		calc.setStdout(stdout);
+		calc.programCodeReader(Path.of("./program.basic"));
+
+		calc.run(1);
+
+		assert stdout.lines.equals(List.of(Files.readString(Path.of("./program.stdout")).split("\r?\n")));
+
+		var file = Files.createTempFile("program", ".basic");
+
+		try {
+			Files.writeString(file, "30 IF count < 3 GOTO 20\r\n\n\n10 LET count = 0\r\n20 PRINT \"Zażółć\"\n25 LET count = count + 1");
+
+			calc = new ProgrammableCalculator();
+			stdout = new StringLinePrinter();
+			calc.setStdin(new StringLineReader(""));
+			calc.setStdout(stdout);
+			calc.programCodeReader(file);
+
+			calc.run(10);
+
+			assert stdout.lines.equals(List.of("Zażółć", "Zażółć", "Zażółć"));
+
+			// The loaded program does not read the file again, so truncating it does not affect the program
+			var program = new StringBuilder("10 LET count = 0\n20 PRINT count\n30 END\n");
+
+			for (int line = 100; line < 10000; line++) {
+				program.append(line).append(" LET count = count + 1\n");
+			}
+
+			Files.writeString(file, program);
+			calc = new ProgrammableCalculator();
+			stdout = new StringLinePrinter();
+			calc.setStdout(stdout);
+			calc.programCodeReader(file);
+			calc.awaitParsed();
+			Files.writeString(file, "1 END");
+
+			var snapshots = new ArrayList<Snapshot>();
+			calc.setSnapshots(snapshots::add, 1);
+			calc.run(10);
+
+			assert stdout.lines.equals(List.of("0"));
+			assert snapshots.size() == 2 : snapshots.size();
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void optimize() {
+		String program = """
+				10 LET a = 2 * 3
+				20 IF 1 < 2 GOTO 40
+				30 PRINT "NIE"
+				40 IF 1 > 2 GOTO 30
+				50 PRINT a + 1
+				60 PRINT 7 / 0
+				70 END
+				80 THIS IS NOT BASIC
+				90 PRINT 10 - 1
+				""";
+
+		var reports = new ArrayList<List<String>>();
+
+		for (var optimize : List.of(false, true)) {
+			var calc = new ProgrammableCalculator();
+			var stdout = new StringLinePrinter();
+			calc.setOptimize(optimize);
+			calc.setStdin(new StringLineReader(""));
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (ArithmeticException ignored) {
+			}
+
+			assert stdout.lines.equals(List.of("7")) : stdout.lines;
+			reports.add(calc.getOptimizationReport());
+
+			calc.run(90);
+
+			assert stdout.lines.equals(List.of("7", "9")) : stdout.lines;
+		}
+
+		assert reports.get(0).isEmpty();
+		assert reports.get(1).equals(List.of(
+				"line 10: 'LET a = 2 * 3' -> 'LET a = 6'",
+				"line 20: 'IF 1 < 2 GOTO 40' -> 'GOTO 40'",
+				"line 40: 'IF 1 > 2 GOTO 30' -> removed",
+				"line 30: unreachable, not parsed",
+				"lines 80-90: unreachable, not parsed"
+		)) : reports.get(1);
+
+		// With assertions enabled the regex parser fails on line 30 with an AssertionError, the optimiser reaches
+		// it but it is never run
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setOptimize(true);
+		calc.setStdin(new StringLineReader(""));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader("10 LET a = 1\n20 IF a = 1 GOTO 40\n30 !!!\n40 PRINT a\n")));
+
+		calc.run(10);
+
+		assert stdout.lines.equals(List.of("1")) : stdout.lines;
+	}
+
+	@org.junit.jupiter.api.Test
+	void superinstructions() {
+		String program = """
+				10 LET i = 0
+				20 LET i = i + 1
+				30 IF i < 5 GOTO 20
+				40 PRINT i
+				50 IF 10 < i GOTO 100
+				60 LET i = 3 + i
+				70 GOTO 30
+				80 LET j = j - 1
+				90 IF j = i GOTO 10
+				100 END
+				""";
+
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setStdin(new StringLineReader(""));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+		// Line 70 jumps into the middle of lines 20-30
+		calc.run(10);
+		assert stdout.lines.equals(List.of("5", "8", "11")) : stdout.lines;
+
+		try {
+			calc.run(80);
+			assert false;
+		} catch (ExpressionValueException e) {
+			assert e.getMessage().contains("'j'") : e.getMessage();
+		}
+
+		stdout.lines.clear();
+		calc.run(30);
+		assert stdout.lines.equals(List.of("11")) : stdout.lines;
+	}
+
+	@org.junit.jupiter.api.Test
+	void stackDepth() {
+		String program = """
+				10 LET n = 0
+				20 GOSUB 100
+				30 END
+				100 LET n = n + 1
+				110 IF n < 50 GOTO 130
+				120 RETURN
+				130 GOSUB 100
+				140 RETURN
+				200 GOSUB 200
+				""";
+
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			calc.setExecutionMode(mode);
+			calc.setStdin(new StringLineReader(""));
+			calc.setStdout(new StringLinePrinter());
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+			calc.setMaxStackDepth(50);
+			calc.run(10);
+			assert calc.getStackDepth() == 0 : mode;
+
+			calc.setMaxStackDepth(49);
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (GosubOverflowError e) {
+				assert e.getMessage().contains("at line 130") : e.getMessage();
+				assert calc.getStackDepth() == 49 : calc.getStackDepth();
+			}
+
+			calc = new ProgrammableCalculator();
+			calc.setExecutionMode(mode);
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+			try {
+				calc.run(200);
+				assert false;
+			} catch (GosubOverflowError e) {
+				assert e.getMessage().contains("at line 200") : e.getMessage();
+				assert calc.getStackDepth() == ReturnStack.DEFAULT_MAX_DEPTH : mode;
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void sharedProgram() throws Exception {
+		var program = CompiledProgram.load(new BufferedReader(new FileReader("./program.basic")), false);
+		var inputs = List.of("1\n0", "250\n3", "3000\n15", "1234\n7", "99\n1", "777\n2", "5000\n0", "10\n10");
+
+		for (var mode : ExecutionMode.values()) {
+			var expected = new ArrayList<List<String>>();
+
+			for (var input : inputs) {
+				var calc = new ProgrammableCalculator();
+				var stdout = new StringLinePrinter();
+				calc.setExecutionMode(mode);
+				calc.setStdin(new StringLineReader(input));
+				calc.setStdout(stdout);
+				calc.programCodeReader(new BufferedReader(new FileReader("./program.basic")));
+				calc.run(1);
+				expected.add(stdout.lines);
+			}
+
+			var outputs = new ArrayList<StringLinePrinter>();
+			var threads = new ArrayList<Thread>();
+			var errors = new ArrayList<Throwable>();
+
+			for (var input : inputs) {
+				var calc = new ProgrammableCalculator(program);
+				var stdout = new StringLinePrinter();
+				calc.setExecutionMode(mode);
+				calc.setStdin(new StringLineReader(input));
+				calc.setStdout(stdout);
+				outputs.add(stdout);
+
+				var thread = new Thread(() -> calc.run(1));
+				thread.setUncaughtExceptionHandler((t, e) -> {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				});
+				threads.add(thread);
+			}
+
+			threads.forEach(Thread::start);
+
+			for (var thread : threads) {
+				thread.join();
+			}
+
+			assert errors.isEmpty() : errors;
+
+			for (int i = 0; i < inputs.size(); i++) {
+				assert outputs.get(i).lines.equals(expected.get(i)) : mode + " " + inputs.get(i);
+			}
+		}
+
+		// Loading more lines into one calculator does not change the shared program
+		var calc = new ProgrammableCalculator(program);
+		var stdout = new StringLinePrinter();
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader("1 PRINT \"Hi\"\n2 END")));
+		calc.run(1);
+
+		assert stdout.lines.equals(List.of("Hi")) : stdout.lines;
+		assert calc.getCompiledProgram() != program;
+		assert program.size() == 21 : program.size();
+	}
+
+	@org.junit.jupiter.api.Test
+	void batch() throws Exception {
+		var program = CompiledProgram.load(new BufferedReader(new FileReader("./program.basic")), false);
+		var inputs = List.of("1\n0", "250\n3", "3000\n15", "1234\n7", "99\n1", "777\n2", "5000\n0", "10\nx");
+		var steps = new ArrayList<Long>();
+
+		for (var mode : ExecutionMode.values()) {
+			var runner = new BatchRunner(program, 1);
+			runner.setExecutionMode(mode);
+
+			var readers = inputs.stream().map(StringLineReader::new).toList();
+			List<BatchRunner.Result> results;
+
+			if (mode == ExecutionMode.BYTECODE) {
+				var executor = java.util.concurrent.Executors.newFixedThreadPool(3);
+				results = runner.run(readers, executor);
+				executor.shutdown();
+			} else {
+				results = runner.run(readers);
+			}
+
+			assert results.size() == inputs.size();
+
+			for (int i = 0; i < inputs.size(); i++) {
+				var calc = new ProgrammableCalculator();
+				var stdout = new StringLinePrinter();
+				calc.setStdin(new StringLineReader(inputs.get(i)));
+				calc.setStdout(stdout);
+				calc.programCodeReader(new BufferedReader(new FileReader("./program.basic")));
+				RuntimeException error = null;
+
+				try {
+					calc.run(1);
+				} catch (RuntimeException e) {
+					error = e;
+				}
+
+				var result = results.get(i);
+				assert result.output().equals(stdout.lines) : mode + " " + inputs.get(i);
+				assert (result.error() == null) == (error == null) : mode + " " + result.error();
+				assert error == null || result.error().getClass() == error.getClass();
+				assert !result.wallTime().isNegative();
+				assert result.steps() > 0;
+
+				if (mode == ExecutionMode.TREE_WALKER) {
+					steps.add(result.steps());
+				} else {
+					assert result.steps() == steps.get(i) : mode + " " + result.steps() + " " + steps.get(i);
+				}
+			}
+		}
+
+		// 1-4, 100-105, 5-7, 200-202, 206 and 8
+		assert steps.get(0) == 18 : steps.get(0);
+	}
+
+	@org.junit.jupiter.api.Test
+	void bufferedOutput() throws IOException {
+		String program = """
+				10 PRINT "A"
+				20 PRINT 1 + 2
+				30 INPUT x
+				40 PRINT x
+				50 PRINT y
+				60 LET i = 0
+				70 PRINT i
+				80 LET i = i + 1
+				90 IF i < 10000 GOTO 70
+				""";
+
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			var chunks = new ArrayList<String>();
+			calc.setExecutionMode(mode);
+			calc.setBufferedStdout(lines -> chunks.add(lines.toString()));
+			calc.setStdin(() -> {
+				assert chunks.equals(List.of("A\n3\n")) : chunks;
+				return "5";
+			});
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (ExpressionValueException ignored) {
+			}
+
+			assert chunks.equals(List.of("A\n3\n", "5\n")) : mode + " " + chunks;
+
+			chunks.clear();
+			calc.run(60);
+
+			assert chunks.size() > 1 : chunks.size();
+			assert String.join("", chunks).lines().toList().equals(
+					java.util.stream.IntStream.range(0, 10000).mapToObj(Integer::toString).toList()
+			);
+
+			var stdout = new StringLinePrinter();
+			calc = new ProgrammableCalculator();
+			calc.setExecutionMode(mode);
+			calc.setStdin(new StringLineReader(Files.readString(Path.of("./program.stdin"))));
+			calc.setBufferedStdout(BulkPrinter.of(stdout));
+			calc.programCodeReader(new BufferedReader(new FileReader("./program.basic")));
+			calc.run(1);
+
+			assert stdout.lines.equals(List.of(Files.readString(Path.of("./program.stdout")).split("\r?\n"))) : mode;
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void prefetchingInput() throws Exception {
+		for (var mode : ExecutionMode.values()) {
+			var source = new StringLineReader(Files.readString(Path.of("./program.stdin")));
+
+			try (var stdin = new PrefetchingLineReader(() -> source.lines.isEmpty() ? null : source.readLine(), 1)) {
+				var calc = new ProgrammableCalculator();
+				var stdout = new StringLinePrinter();
+				calc.setExecutionMode(mode);
+				calc.setStdin(stdin);
+				calc.setStdout(stdout);
+				calc.programCodeReader(new BufferedReader(new FileReader("./program.basic")));
+				calc.run(1);
+
+				assert stdout.lines.equals(List.of(Files.readString(Path.of("./program.stdout")).split("\r?\n"))) : mode;
+				assert stdin.readLine() == null;
+			}
+		}
+
+		var lines = new ArrayList<>(List.of("1", "-2147483648", "x", "+7", " 3"));
+		// The first line is held back until a read waits for it, the others until the first one was read
+		var first = new CountDownLatch(1);
+		var rest = new CountDownLatch(1);
+
+		try (var stdin = new PrefetchingLineReader(() -> {
+			if (lines.isEmpty()) {
+				throw new IllegalStateException("no more input");
+			}
+
+			try {
+				(lines.size() == 5 ? first : rest).await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+
+			return lines.remove(0);
+		}, 2)) {
+			var release = new Thread(() -> {
+				while (stdin.getReadStalls() == 0) {
+					Thread.onSpinWait();
+				}
+
+				first.countDown();
+			});
+
+			release.start();
+			assert stdin.readInt() == 1;
+			release.join();
+			assert stdin.getReadStalls() == 1 : stdin.getReadStalls();
+			assert stdin.getReadStallNanos() > 0;
+
+			// The buffer fills up with the next 2 lines, then the background thread waits with the third one
+			rest.countDown();
+
+			while (stdin.getPrefetchStalls() == 0) {
+				Thread.onSpinWait();
+			}
+
+			assert stdin.getPrefetchStalls() == 1 : stdin.getPrefetchStalls();
+
+			assert stdin.readInt() == Integer.MIN_VALUE;
+
+			for (var line : List.of("x", "+7", " 3")) {
+				String expected = null;
+
+				try {
+					Integer.parseInt(line);
+				} catch (NumberFormatException e) {
+					expected = e.getMessage();
+				}
+
+				try {
+					assert stdin.readInt() == Integer.parseInt(line);
+				} catch (NumberFormatException e) {
+					assert e.getMessage().equals(expected) : e.getMessage();
+				}
+			}
+
+			try {
+				stdin.readLine();
+				assert false;
+			} catch (IllegalStateException e) {
+				assert e.getMessage().equals("no more input");
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void profiler() {
+		String program = """
+				10 LET i = 0
+				20 GOSUB 100
+				30 LET i = i + 1
+				40 IF i < 3 GOTO 20
+				50 END
+				100 GOSUB 200
+				110 RETURN
+				200 PRINT i
+				210 RETURN
+				""";
+
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setExecutionMode(ExecutionMode.JIT);
+		calc.setStdout(stdout);
+		calc.setProfiling(true);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+		calc.run(10);
+
+		assert stdout.lines.equals(List.of("0", "1", "2")) : stdout.lines;
+
+		var report = calc.getProfileReport();
+		assert report.get(0).equals("line 20: 3 (13.0%)") : report;
+		assert report.subList(0, 7).stream().map(l -> l.split(":")[0]).toList().equals(List.of(
+				"line 20", "line 30", "line 40", "line 100", "line 110", "line 200", "line 210"
+		)) : report;
+		assert report.get(7).equals("line 10: 1 (4.3%)") : report;
+		assert report.get(8).equals("line 50: 1 (4.3%)") : report;
+		assert report.get(9).startsWith("GOSUB 100: 3 calls, ") : report;
+		assert report.get(10).startsWith("GOSUB 200: 3 calls, ") : report;
+		assert report.size() == 11 : report;
+
+		assert calc.getCollapsedStacks().equals("""
+				main 11
+				main;100 6
+				main;100;200 6
+				""") : calc.getCollapsedStacks();
+
+		calc.setProfiling(false);
+		calc.run(10);
+
+		assert calc.getProfileReport().isEmpty();
+		assert stdout.lines.size() == 6;
+
+		// Profiles of a changed program start over instead of crediting the old program indices
+		calc.setProfiling(true);
+		assert calc.getProfileReport().isEmpty();
+
+		calc.run(10);
+		calc.removeLine(20);
+		calc.removeLine(100);
+		calc.removeLine(110);
+		calc.setLine(20, "PRINT i");
+		calc.run(10);
+
+		var changed = calc.getProfileReport();
+		assert changed.size() == 5 : changed;
+		assert changed.get(0).equals("line 20: 3 (27.3%)") : changed;
+		assert calc.getCollapsedStacks().equals("main 11\n") : calc.getCollapsedStacks();
+	}
+
+	@org.junit.jupiter.api.Test
+	void limits() throws Exception {
+		String program = """
+				10 LET i = 0
+				20 LET i = i + 1
+				30 PRINT i
+				40 GOTO 20
+				50 LET i = i + 1
+				60 IF i < 1000000 GOTO 50
+				70 GOTO 70
+				""";
+
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			var stdout = new StringLinePrinter();
+			calc.setExecutionMode(mode);
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+			calc.setInstructionLimit(10);
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (RunStoppedError e) {
+				assert e.line == 20 && e.reason == RunStoppedError.Reason.INSTRUCTION_LIMIT : e.getMessage();
+				assert e.getMessage().equals("Run stopped at line 20: instruction limit reached") : e.getMessage();
+			}
+
+			assert stdout.lines.equals(List.of("1", "2", "3")) : mode + " " + stdout.lines;
+
+			// The limit is exact also for superinstructions
+			for (var limit : List.of(3, 4)) {
+				calc.setInstructionLimit(limit);
+
+				try {
+					calc.run(50);
+					assert false;
+				} catch (RunStoppedError e) {
+					assert e.line == (limit == 3 ? 60 : 50) : mode + " " + e.getMessage();
+				}
+			}
+
+			calc.setInstructionLimit(Long.MAX_VALUE);
+			calc.setTimeout(Duration.ofMillis(50));
+			var start = Instant.now();
+
+			try {
+				calc.run(20);
+				assert false;
+			} catch (RunStoppedError e) {
+				assert e.reason == RunStoppedError.Reason.TIMEOUT : e.getMessage();
+			}
+
+			assert Duration.between(start, Instant.now()).toMillis() < 5000;
+			calc.setTimeout(null);
+
+			for (var reason : List.of(RunStoppedError.Reason.CANCELLED, RunStoppedError.Reason.INTERRUPTED)) {
+				var error = new RunStoppedError[1];
+				var finalCalc = calc;
+				var thread = new Thread(() -> {
+					try {
+						finalCalc.run(70);
+					} catch (RunStoppedError e) {
+						error[0] = e;
+					}
+				});
+
+				calc.setInstructionLimit(Long.MAX_VALUE);
+				thread.start();
+				Thread.sleep(20);
+
+				if (reason == RunStoppedError.Reason.CANCELLED) {
+					calc.cancel();
+				} else {
+					thread.interrupt();
+				}
+
+				thread.join(5000);
+				assert !thread.isAlive();
+				assert error[0].line == 70 && error[0].reason == reason : error[0].getMessage();
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void snapshots() {
+		String program = """
+				10 LET i = 0
+				20 LET i = i + 1
+				30 GOSUB 100
+				40 IF i < 20 GOTO 20
+				50 END
+				100 LET sq = i * i
+				110 PRINT sq
+				120 GOSUB 200
+				130 RETURN
+				200 PRINT "depth 2"
+				210 RETURN
+				""";
+
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			var stdout = new StringLinePrinter();
+			var snapshots = new ArrayList<Snapshot>();
+			var printed = new ArrayList<Integer>();
+			calc.setExecutionMode(mode);
+			calc.setBufferedStdout(BulkPrinter.of(stdout));
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+			calc.setSnapshots(snapshot -> {
+				snapshots.add(snapshot);
+				printed.add(stdout.lines.size());
+			}, 7);
+			calc.run(10);
+
+			assert stdout.lines.size() == 40 : mode + " " + stdout.lines;
+			assert snapshots.size() == 25 : mode + " " + snapshots.size();
+
+			for (int i = 0; i < snapshots.size(); i++) {
+				assert snapshots.get(i).steps == 7L * (i + 1) : mode + " " + snapshots.get(i).steps;
+
+				var resumed = new ProgrammableCalculator();
+				var resumedStdout = new StringLinePrinter();
+				resumed.setExecutionMode(mode);
+				resumed.setStdout(resumedStdout);
+				resumed.programCodeReader(new BufferedReader(new StringReader(program)));
+				resumed.resume(Snapshot.of(snapshots.get(i).toByteArray()));
+
+				var expected = stdout.lines.subList(printed.get(i), stdout.lines.size());
+				assert resumedStdout.lines.equals(expected) : mode + " " + i + " " + resumedStdout.lines;
+			}
+		}
+
+		// A snapshot requested together with a cancellation keeps the state of the stopped run
+		var calc = new ProgrammableCalculator();
+		var snapshot = new Snapshot[1];
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+		calc.setStdout(new StringLinePrinter());
+		calc.setSnapshots(s -> snapshot[0] = s, 0);
+		calc.requestSnapshot();
+		calc.cancel();
+
+		try {
+			calc.run(100);
+			assert false;
+		} catch (RunStoppedError e) {
+			assert e.reason == RunStoppedError.Reason.CANCELLED;
+		}
+
+		assert snapshot[0].line == 100 && snapshot[0].steps == 0;
+
+		var other = new ProgrammableCalculator();
+		other.programCodeReader(new BufferedReader(new StringReader("10 END")));
+
+		try {
+			other.resume(snapshot[0]);
+			assert false;
+		} catch (IllegalArgumentException e) {
+			assert e.getMessage().equals("The snapshot is of a different program");
+		}
+
+		try {
+			Snapshot.of(new byte[] {1, 2, 3});
+			assert false;
+		} catch (IllegalArgumentException e) {
+			assert e.getMessage().equals("Not a BASIC snapshot");
+		}
+
+		// A damaged snapshot leaves the context unchanged, here with the last return address cut off
+		var ctx = new ExecutionContext(new SymbolTable());
+		ctx.setVar(ctx.symbols.slot("z"), 7);
+		ctx.stack.push(3);
+		ctx.steps = 5;
+		var taken = new ArrayList<Snapshot>();
+		calc = new ProgrammableCalculator();
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+		calc.setStdout(new StringLinePrinter());
+		calc.setSnapshots(taken::add, 7);
+		calc.run(10);
+		var data = taken.get(0).toByteArray();
+		var damaged = Snapshot.of(Arrays.copyOf(data, data.length - 4));
+
+		try {
+			damaged.restore(ctx, 100);
+			assert false;
+		} catch (IllegalArgumentException e) {
+			assert e.getMessage().startsWith("Damaged snapshot") : e.getMessage();
+		}
+
+		assert ctx.symbols.size() == 1 && ctx.getVar(0) == 7 && ctx.defined[0] == 1;
+		assert ctx.stack.size == 1 && ctx.stack.data[0] == 3 && ctx.steps == 5;
+	}
+
+	@org.junit.jupiter.api.Test
+	void hotReload() {
+		String program = """
+				10 LET i = 0
+				20 LET i = i + 1
+				30 GOSUB 100
+				40 IF i < 3 GOTO 20
+				50 END
+				100 PRINT i
+				110 RETURN
+				""";
+
+		for (var mode : ExecutionMode.values()) {
+			var calc = new ProgrammableCalculator();
+			var stdout = new StringLinePrinter();
+			calc.setExecutionMode(mode);
+			calc.setStdout(stdout);
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+			calc.run(10);
+			assert stdout.lines.equals(List.of("1", "2", "3")) : mode + " " + stdout.lines;
+
+			// Inserted before every destination, so all of them move
+			calc.setLine(5, "PRINT 0");
+			calc.setLine(15, "PRINT i * 10");
+			calc.setLine(105, "PRINT i + 100");
+			stdout.lines.clear();
+			calc.run(5);
+			assert stdout.lines.equals(List.of("0", "0", "1", "101", "2", "102", "3", "103")) : mode + " " + stdout.lines;
+
+			calc.setLine(40, "IF i < 2 GOTO 20");
+			calc.removeLine(15);
+			calc.removeLine(15);
+			stdout.lines.clear();
+			calc.run(10);
+			assert stdout.lines.equals(List.of("1", "101", "2", "102")) : mode + " " + stdout.lines;
+
+			calc.setLine(40, "GOTO 200");
+			stdout.lines.clear();
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (GotoError | SyntaxError ignored) {
+			}
+
+			calc.setLine(200, "PRINT 200");
+			stdout.lines.clear();
+			calc.run(10);
+			assert stdout.lines.equals(List.of("1", "101", "200")) : mode + " " + stdout.lines;
+
+			calc.removeLine(100);
+			stdout.lines.clear();
+
+			try {
+				calc.run(10);
+				assert false;
+			} catch (GotoError | SyntaxError ignored) {
+			}
+
+			assert calc.getCompiledProgram().size() == 9;
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void compileCache() throws IOException {
+		var directory = Files.createTempDirectory("basic-cache");
+		var file = directory.resolve("program.basic");
+		var expected = List.of(Files.readString(Path.of("./program.stdout")).split("\r?\n"));
+
+		try {
+			Files.copy(Path.of("./program.basic"), file);
+			var cache = new CompileCache(directory.resolve("cache"));
+
+			for (int i = 0; i < 3; i++) {
+				var calc = new ProgrammableCalculator(cache.load(file, new SymbolTable(), i == 2, Runnable::run));
+				var stdout = new StringLinePrinter();
+				calc.setStdin(new StringLineReader(Files.readString(Path.of("./program.stdin"))));
+				calc.setStdout(stdout);
+				calc.setExecutionMode(ExecutionMode.values()[i]);
+				calc.run(1);
+
+				assert stdout.lines.equals(expected) : i;
+				assert cache.misses() == 1 && cache.hits() == i : cache.hits();
+			}
+
+			try (var entries = Files.list(directory.resolve("cache"))) {
+				assert entries.count() == 1;
+			}
+
+			// Errors are reported when the line is executed, also when loaded from the cache
+			Files.writeString(file, "10 PRINT \"Zażółć\"\n20 LET x = 1 +\n30 GOTO 40\n40 PRINT x");
+
+			for (int i = 0; i < 2; i++) {
+				var calc = new ProgrammableCalculator();
+				var stdout = new StringLinePrinter();
+				calc.setCompileCache(directory.resolve("cache"));
+				calc.setStdout(stdout);
+				calc.programCodeReader(file);
+
+				try {
+					calc.run(10);
+					assert false;
+				} catch (SyntaxError ignored) {
+				}
+
+				assert stdout.lines.equals(List.of("Zażółć"));
+
+				try {
+					calc.run(30);
+					assert false;
+				} catch (ExpressionValueException e) {
+					assert e.getMessage().equals("Invalid BASIC expression: no variable 'x' defined");
+				}
+			}
+
+			// Entries of another version are ignored and written again
+			try (var entries = Files.list(directory.resolve("cache"))) {
+				assert entries.count() == 2;
+			}
+
+			try (var entries = Files.list(directory.resolve("cache"))) {
+				for (var entry : entries.toList()) {
+					var data = Files.readAllBytes(entry);
+					data[7]++;
+					Files.write(entry, data);
+				}
+			}
+
+			var program = cache.load(file, new SymbolTable(), false, Runnable::run);
+			assert cache.misses() == 2 && cache.hits() == 2 : cache.misses();
+			assert program.size() == 4;
+			cache.load(file, new SymbolTable(), false, Runnable::run);
+			assert cache.misses() == 2 && cache.hits() == 3 : cache.hits();
+
+			// Damaged entries do not register their variables, here 'y' instead of 'x' in a truncated entry
+			Files.writeString(file, "10 LET x = 1\n20 PRINT x\n");
+			cache.load(file, new SymbolTable(), false, Runnable::run);
+
+			try (var entries = Files.list(directory.resolve("cache"))) {
+				for (var entry : entries.toList()) {
+					var data = Files.readAllBytes(entry);
+
+					if (data.length > 46 && data[46] == 'x') {
+						data[46] = 'y';
+						Files.write(entry, Arrays.copyOf(data, data.length - 1));
+					}
+				}
+			}
+
+			var symbols = new SymbolTable();
+			cache.load(file, symbols, false, Runnable::run);
+			assert cache.misses() == 4 : cache.misses();
+			assert symbols.size() == 1 && symbols.name(0).equals("x") : symbols.size();
+
+			// Symbol tables with other variables get their own slots
+			symbols = new SymbolTable();
+			symbols.slot("q");
+			var calc = new ProgrammableCalculator(cache.load(file, symbols, false, Runnable::run));
+			var stdout = new StringLinePrinter();
+			calc.setStdout(stdout);
+			calc.run(10);
+			assert cache.hits() == 4 : cache.hits();
+			assert symbols.name(1).equals("x") && stdout.lines.equals(List.of("1")) : stdout.lines;
+
+			// Negative and huge counts are misses too, instead of failing to allocate
+			for (var count : new int[] {-1, Integer.MAX_VALUE}) {
+				try (var entries = Files.list(directory.resolve("cache"))) {
+					for (var entry : entries.toList()) {
+						var data = ByteBuffer.wrap(Files.readAllBytes(entry));
+
+						if (data.getInt(40) == 1) {
+							Files.write(entry, data.putInt(40, count).array());
+						}
+					}
+				}
+
+				var misses = cache.misses();
+				calc = new ProgrammableCalculator(cache.load(file, new SymbolTable(), false, Runnable::run));
+				stdout = new StringLinePrinter();
+				calc.setStdout(stdout);
+				calc.run(10);
+				assert cache.misses() == misses + 1 : count;
+				assert stdout.lines.equals(List.of("1")) : stdout.lines;
+			}
+		} finally {
+			try (var files = Files.walk(directory)) {
+				for (var path : files.sorted(java.util.Comparator.reverseOrder()).toList()) {
+					Files.delete(path);
+				}
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void stagedParsing() throws Exception {
+		var program = new StringBuilder("1 LET i = 0\n");
+
+		// More than one parse chunk, with an error in each of the first two
+		for (int line = 2; line < 2 * CompiledProgram.PARSE_CHUNK + 10; line++) {
+			if (line == 5 || line == CompiledProgram.PARSE_CHUNK + 7) {
+				program.append(line).append(" GOTO 1000000\n");
+			} else {
+				program.append(line).append(" LET i = i + 1\n");
+			}
+		}
+
+		program.append("1000001 PRINT i\n");
+
+		var tasks = new java.util.concurrent.atomic.AtomicInteger();
+		var executor = java.util.concurrent.Executors.newFixedThreadPool(2);
+
+		try {
+			for (var parseExecutor : List.<java.util.concurrent.Executor>of(Runnable::run, task -> {
+				tasks.incrementAndGet();
+				executor.execute(task);
+			})) {
+				var calc = new ProgrammableCalculator(parseExecutor);
+				var stdout = new StringLinePrinter();
+				calc.setStdout(stdout);
+				calc.programCodeReader(new BufferedReader(new StringReader(program.toString())));
+
+				try {
+					calc.awaitParsed();
+					assert false;
+				} catch (ParseErrors e) {
+					assert java.util.Arrays.equals(e.lines, new int[] {5, CompiledProgram.PARSE_CHUNK + 7});
+					assert e.getSuppressed().length == 2 && e.getSuppressed()[0] instanceof SyntaxError;
+					assert e.getMessage().equals("2 lines failed to parse\nline 5: BASIC syntax error in 'GOTO 1000000'\nline "
+							+ (CompiledProgram.PARSE_CHUNK + 7) + ": BASIC syntax error in 'GOTO 1000000'") : e.getMessage();
+				}
+
+				// Lines which do not parse only fail when they are executed
+				try {
+					calc.run(1);
+					assert false;
+				} catch (SyntaxError e) {
+					assert e.getMessage().equals("BASIC syntax error in 'GOTO 1000000'") : e.getMessage();
+				}
+
+				calc.run(CompiledProgram.PARSE_CHUNK + 8);
+				assert stdout.lines.equals(List.of(Integer.toString(CompiledProgram.PARSE_CHUNK + 5))) : stdout.lines;
+			}
+
+			assert tasks.get() == 3 : tasks.get();
+		} finally {
+			executor.shutdown();
+		}
+
+		var calc = new ProgrammableCalculator(Runnable::run);
+		calc.programCodeReader(new BufferedReader(new StringReader("10 PRINT 1\n20 END")));
+		calc.awaitParsed();
+	}
+
+	@org.junit.jupiter.api.Test
+	void checkedArithmetic() {
+		var symbols = new SymbolTable();
+		var lineMappings = new TreeMap<Integer, Integer>();
+
+		for (var parsed : List.of(
+				BasicParser.parse("LET a = b + 1", lineMappings, symbols),
+				Instruction.parse("LET a = b + 1", lineMappings, symbols)
+		)) {
+			assert ((Instruction.Let) parsed).value instanceof Expression.VariableConstant;
+		}
+
+		assert ((Instruction.Let) BasicParser.parse("LET a = 1 - b", lineMappings, symbols)).value instanceof Expression.ConstantVariable;
+		assert ((Instruction.Let) BasicParser.parse("LET a = a * b", lineMappings, symbols)).value instanceof Expression.VariableVariable;
+		assert ((Instruction.Let) BasicParser.parse("LET a = \"-12\"", lineMappings, symbols)).value instanceof Expression.Str s && s.numeric && s.value == -12;
+
+		String program = """
+				10 LET i = 2147483600
+				20 LET i = i + 10
+				30 IF i > 0 GOTO 20
+				40 PRINT i
+				50 END
+				60 LET m = 0 - 2147483647
+				70 LET m = m - 1
+				80 PRINT m / -1
+				85 END
+				90 PRINT 7 / 0
+				100 PRINT 2147483647 * 2
+				""";
+
+		for (var optimize : List.of(false, true)) {
+			for (var mode : ExecutionMode.values()) {
+				var calc = new ProgrammableCalculator();
+				var stdout = new StringLinePrinter();
+				calc.setOptimize(optimize);
+				calc.setExecutionMode(mode);
+				calc.setStdout(stdout);
+				calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+				calc.run(10);
+				assert stdout.lines.equals(List.of("-2147483646")) : mode + " " + stdout.lines;
+
+				calc.setCheckedArithmetic(true);
+
+				try {
+					calc.run(10);
+					assert false;
+				} catch (ArithmeticOverflowError e) {
+					assert e.line == 20 && e.getMessage().equals("Integer overflow in line 20: 2147483640 + 10") : e.getMessage();
+				}
+
+				try {
+					calc.run(60);
+					assert false;
+				} catch (ArithmeticOverflowError e) {
+					assert e.getMessage().equals("Integer overflow in line 80: -2147483648 / -1") : e.getMessage();
+				}
+
+				try {
+					calc.run(90);
+					assert false;
+				} catch (ArithmeticException e) {
+					assert !(e instanceof ArithmeticOverflowError) && e.getMessage().equals("/ by zero");
+				}
+
+				try {
+					calc.run(100);
+					assert false;
+				} catch (ArithmeticOverflowError e) {
+					assert e.line == 100 : e.getMessage();
+				}
+
+				calc.setCheckedArithmetic(false);
+				stdout.lines.clear();
+				calc.run(60);
+				assert stdout.lines.equals(List.of("-2147483648")) : stdout.lines;
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void definedVariables() {
+		String program = """
+				10 INPUT n
+				20 LET i = 0
+				30 GOSUB 100
+				40 PRINT s
+				50 LET i = i + 1
+				60 IF i < n GOTO 30
+				70 IF n > 2 GOTO 90
+				80 LET t = i
+				90 PRINT t
+				95 END
+				100 LET s = i * 2
+				110 IF s > u GOTO 130
+				120 RETURN
+				130 RETURN
+				200 PRINT v
+				""";
+
+		var calc = new ProgrammableCalculator(Runnable::run);
+		var stdout = new StringLinePrinter();
+		calc.setStdin(new StringLineReader("2\n2\n3"));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+		assert calc.getUndefinedVariableWarnings().equals(List.of(
+				"line 90: variable 't' may not be defined",
+				"line 110: variable 'u' may not be defined"
+		)) : calc.getUndefinedVariableWarnings();
+
+		try {
+			calc.run(10);
+			assert false;
+		} catch (ExpressionValueException e) {
+			assert e.getMessage().equals("Invalid BASIC expression: no variable 'u' defined");
+		}
+
+		calc.setLine(5, "LET u = -1");
+		assert calc.getUndefinedVariableWarnings().equals(List.of("line 90: variable 't' may not be defined"));
+		calc.run(5);
+		assert stdout.lines.equals(List.of("0", "2", "2")) : stdout.lines;
+
+		// Reads which may fail are still checked, here t is set by the previous run
+		stdout.lines.clear();
+		calc.run(5);
+		assert stdout.lines.equals(List.of("0", "2", "4", "2")) : stdout.lines;
+
+		var fresh = new ProgrammableCalculator(Runnable::run);
+		fresh.setStdin(new StringLineReader("3"));
+		fresh.setStdout(stdout);
+		fresh.programCodeReader(new BufferedReader(new StringReader("5 LET u = -1\n" + program)));
+
+		try {
+			fresh.run(5);
+			assert false;
+		} catch (ExpressionValueException e) {
+			assert e.getMessage().equals("Invalid BASIC expression: no variable 't' defined");
+		}
+
+		// A wrong proof is only caught by the assertion, proven reads are not checked otherwise
+		var symbols = new SymbolTable();
+		var ctx = new ExecutionContext(symbols);
+		var slot = symbols.slot("x");
+
+		for (var defined : new boolean[]{false, true}) {
+			try {
+				ctx.getVar(slot, defined);
+				assert false;
+			} catch (ExpressionValueException e) {
+				assert !defined;
+			} catch (AssertionError e) {
+				assert defined && "Variable 'x' was proven to be set, but is not".equals(e.getMessage()) : e.getMessage();
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void definedVariablesSoundness() {
+		var programs = new ArrayList<>(List.of(
+				// Paths of different lengths to the same line
+				"1 INPUT b\n2 IF b < 1 GOTO 5\n3 LET a = 1\n4 GOTO 6\n5 GOTO 6\n6 PRINT a\n",
+				// A loop setting a variable read at its start, and started inside the loop
+				"1 LET i = 0\n2 GOTO 4\n3 PRINT a\n4 LET a = i\n5 LET i = i + 1\n6 IF i < 3 GOTO 3\n7 PRINT a\n",
+				// Subroutines which set a variable, and which do not
+				"1 INPUT b\n2 IF b < 2 GOTO 5\n3 GOSUB 7\n4 GOTO 6\n5 GOSUB 9\n6 PRINT a\n7 LET a = 1\n8 RETURN\n9 RETURN\n",
+				"1 GOSUB 4\n2 PRINT a + b\n3 END\n4 INPUT a\n5 IF a < 2 GOTO 7\n6 LET b = a\n7 RETURN\n"
+		));
+
+		// Random programs with loops, GOSUBs and INPUTs
+		var random = new java.util.Random(42);
+		var names = new String[]{"a", "b", "c"};
+
+		for (int n = 0; n < 200; n++) {
+			var size = 4 + random.nextInt(10);
+			var program = new StringBuilder();
+
+			for (int line = 1; line <= size; line++) {
+				var a = names[random.nextInt(names.length)];
+				var b = names[random.nextInt(names.length)];
+				var destination = 1 + random.nextInt(size);
+
+				program.append(line).append(' ').append(switch (random.nextInt(10)) {
+					case 0 -> "LET " + a + " = " + b + " + 1";
+					case 1, 2 -> "LET " + a + " = " + random.nextInt(5);
+					case 3 -> "INPUT " + a;
+					case 4 -> "PRINT " + a;
+					case 5 -> "IF " + a + " < " + b + " GOTO " + destination;
+					case 6 -> "IF " + random.nextInt(5) + " < " + a + " GOTO " + destination;
+					case 7 -> "GOSUB " + destination;
+					case 8 -> "RETURN";
+					default -> "GOTO " + destination;
+				}).append('\n');
+			}
+
+			programs.add(program.toString());
+		}
+
+		// Every program is run from every line with every input, by both modes using the analysis. A read proven
+		// to be set which is not fails the assertion in ExecutionContext.getVar instead of a BASIC error.
+		for (var program : programs) {
+			var size = (int) program.lines().count();
+
+			for (int start = 1; start <= size; start++) {
+				for (int input = 0; input < 8; input++) {
+					var value = String.valueOf(input / 2);
+					var calc = new ProgrammableCalculator(Runnable::run);
+					calc.setExecutionMode(input % 2 == 0 ? ExecutionMode.TREE_WALKER : ExecutionMode.BYTECODE);
+					calc.setStdin(() -> value);
+					calc.setStdout(new StringLinePrinter());
+					calc.setInstructionLimit(200);
+					calc.setMaxStackDepth(16);
+					calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+					try {
+						calc.run(start);
+					} catch (ExpressionValueException | ReturnError | GosubOverflowError | RunStoppedError ignored) {
+					} catch (AssertionError e) {
+						throw new AssertionError("line " + start + ", input " + value + " of\n" + program, e);
+					}
+				}
+			}
+		}
+	}
+
+	@org.junit.jupiter.api.Test
+	void flightRecorderEvents() throws IOException {
+		String program = """
+				10 INPUT n
+				20 GOSUB 100
+				30 END
+				100 LET n = n + 1
+				110 RETURN
+				""";
+
+		var file = Files.createTempFile("basic", ".jfr");
+
+		try (var recording = new jdk.jfr.Recording()) {
+			for (var name : List.of("basic.Load", "basic.Run", "basic.Gosub", "basic.InputStall")) {
+				recording.enable(name).withThreshold(Duration.ZERO);
+			}
+
+			recording.start();
+
+			var loads = BasicEvents.loads.sum();
+			var calc = new ProgrammableCalculator(Runnable::run);
+			// The empty program of a new calculator is not a load
+			assert BasicEvents.loads.sum() == loads;
+			// Recording GOSUBs needs the tree walker, which the run event reports
+			calc.setExecutionMode(ExecutionMode.BYTECODE);
+			calc.setStdin(new StringLineReader("5"));
+			calc.setStdout(new StringLinePrinter());
+			calc.programCodeReader(new BufferedReader(new StringReader(program)));
+			calc.run(10);
+
+			recording.stop();
+			recording.dump(file);
+			assert BasicEvents.loads.sum() == loads + 1;
+		}
+
+		var events = new TreeMap<String, List<jdk.jfr.consumer.RecordedEvent>>();
+
+		for (var event : jdk.jfr.consumer.RecordingFile.readAllEvents(file)) {
+			if (event.getThread().getJavaThreadId() == Thread.currentThread().threadId()) {
+				events.computeIfAbsent(event.getEventType().getName(), name -> new ArrayList<>()).add(event);
+			}
+		}
+
+		Files.delete(file);
+
+		assert events.keySet().equals(java.util.Set.of("basic.Load", "basic.Run", "basic.Gosub", "basic.InputStall")) : events.keySet();
+		assert events.values().stream().allMatch(list -> list.size() == 1) : events;
+
+		var load = events.get("basic.Load").get(0);
+		assert load.getInt("lines") == 5 && load.getInt("errors") == 0 && !load.getBoolean("optimized");
+
+		var run = events.get("basic.Run").get(0);
+		assert run.getInt("line") == 10 && run.getLong("instructions") == 5 && run.getString("mode").equals("TREE_WALKER");
+
+		var gosub = events.get("basic.Gosub").get(0);
+		assert gosub.getInt("line") == 100 && gosub.getInt("caller") == 20 && gosub.getInt("depth") == 1;
+	}
+
+	@org.junit.jupiter.api.Test
+	void executionTrace() {
+		String program = """
+				10 LET i = 0
+				20 LET i = i + 1
+				30 IF i < 5 GOTO 20
+				40 RETURN
+				""";
+
+		var calc = new ProgrammableCalculator();
+		calc.setExecutionTrace(4, true);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+		// Every run starts with an empty trace
+		for (int run = 0; run < 2; run++) {
+			try {
+				calc.run(10);
+				assert false;
+			} catch (ReturnError e) {
+				assert e.getSuppressed().length == 1 : List.of(e.getSuppressed());
+				var trace = (ExecutionTraceDump) e.getSuppressed()[0];
+				assert Arrays.equals(trace.lines, new int[]{30, 20, 30, 40}) : Arrays.toString(trace.lines);
+				assert trace.getMessage().equals("""
+						Last 4 of 12 lines executed
+						line 30
+						line 20: i = 5
+						line 30
+						line 40""") : trace.getMessage();
+			}
+		}
+
+		calc.setCheckedArithmetic(true);
+		calc.setExecutionTrace(8, false);
+		calc.programCodeReader(new BufferedReader(new StringReader("10 LET i = 1\n20 PRINT i + x\n")));
+
+		try {
+			calc.run(10);
+			assert false;
+		} catch (ExpressionValueException e) {
+			var trace = (ExecutionTraceDump) e.getSuppressed()[0];
+			assert trace.getMessage().equals("Last 2 of 2 lines executed\nline 10\nline 20") : trace.getMessage();
+		}
+
+		calc.setExecutionTrace(0, false);
+
+		try {
+			calc.run(10);
+			assert false;
+		} catch (ExpressionValueException e) {
+			assert e.getSuppressed().length == 0;
+		}
+	}
 }
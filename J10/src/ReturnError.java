@@ -0,0 +1,5 @@
+class ReturnError extends RuntimeException {
+	ReturnError(int line) {
+		super("RETURN error in line " + line + ": the stack is empty");
+	}
+}
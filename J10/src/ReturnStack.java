@@ -0,0 +1,70 @@
+import java.util.Arrays;
+
+/**
+ * The GOSUB stack, a growable stack of return addresses (program indices) without boxing, limited to a
+ * maximum depth
+ */
+class ReturnStack {
+	static final int DEFAULT_MAX_DEPTH = 1 << 20;
+
+	int[] data = new int[16];
+	int size = 0;
+	private int maxDepth = DEFAULT_MAX_DEPTH;
+	/**
+	 * The line number of every program index, used for error reporting
+	 */
+	int[] lines = new int[0];
+
+	/**
+	 * Push a return address
+	 *
+	 * @param index The program index to return to, directly after the GOSUB instruction
+	 * @throws GosubOverflowError If the maximum depth is reached
+	 */
+	void push(int index) {
+		// The capacity never exceeds the maximum depth, so it is only checked when growing
+		if (size == data.length) {
+			grow(index);
+		}
+
+		data[size++] = index;
+	}
+
+	private void grow(int index) {
+		if (size >= maxDepth) {
+			throw new GosubOverflowError(lines[index - 1], maxDepth);
+		}
+
+		data = Arrays.copyOf(data, (int) Math.min((long) size * 2, maxDepth));
+	}
+
+	/**
+	 * Pop a return address
+	 *
+	 * @param index The program index of the RETURN instruction, used for error reporting
+	 * @return The program index to return to
+	 */
+	int pop(int index) {
+		if (size == 0) {
+			throw new ReturnError(lines[index]);
+		}
+
+		return data[--size];
+	}
+
+	int maxDepth() {
+		return maxDepth;
+	}
+
+	void maxDepth(int maxDepth) {
+		if (maxDepth < 1) {
+			throw new IllegalArgumentException("The maximum GOSUB depth must be positive, got " + maxDepth);
+		}
+
+		this.maxDepth = maxDepth;
+
+		if (data.length > maxDepth) {
+			data = Arrays.copyOf(data, Math.max(size, maxDepth));
+		}
+	}
+}
@@ -0,0 +1,26 @@
+class RunStoppedError extends RuntimeException {
+	enum Reason {
+		INSTRUCTION_LIMIT("instruction limit reached"),
+		TIMEOUT("timed out"),
+		CANCELLED("cancelled"),
+		INTERRUPTED("interrupted");
+
+		final String description;
+
+		Reason(String description) {
+			this.description = description;
+		}
+	}
+
+	/**
+	 * The line which was about to be executed
+	 */
+	final int line;
+	final Reason reason;
+
+	RunStoppedError(int line, Reason reason) {
+		super("Run stopped at line " + line + ": " + reason.description);
+		this.line = line;
+		this.reason = reason;
+	}
+}
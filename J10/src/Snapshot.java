@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The state of a run between two lines: the next line, the variables, the GOSUB stack and the step count,
+ * see {@link ProgrammableCalculator#setSnapshots(java.util.function.Consumer, long)}. A snapshot can be
+ * resumed with {@link ProgrammableCalculator#resume(Snapshot)} by any calculator running the same program,
+ * also in another process.
+ * <br>
+ * The binary format is big-endian:
+ * <pre>
+ * int   magic ("BSNP")
+ * short version
+ * long  program hash, see {@link CompiledProgram#hash()}
+ * long  steps
+ * int   program index of the next line
+ * int   line number of the next line
+ * int   number of variables, each followed by
+ *       short name length, UTF-8 name, int value
+ * int   GOSUB stack size, followed by the program index of every return address, bottom first
+ * </pre>
+ * Variables are stored by name, since slot numbers depend on the order in which lines were parsed.
+ */
+class Snapshot {
+	private static final int MAGIC = 0x42534e50;
+	static final short VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 2 + 8 + 8 + 4 + 4;
+
+	private final byte[] data;
+	final long programHash;
+	final long steps;
+	/**
+	 * The line number of the next line
+	 */
+	final int line;
+
+	private Snapshot(byte[] data, long programHash, long steps, int line) {
+		this.data = data;
+		this.programHash = programHash;
+		this.steps = steps;
+		this.line = line;
+	}
+
+	/**
+	 * Capture the state of a run before the line at the given index
+	 */
+	static Snapshot take(ExecutionContext ctx, long programHash, int index) {
+		var symbols = ctx.symbols;
+		var values = ctx.values;
+		var defined = ctx.defined;
+		var stack = ctx.stack;
+		var size = HEADER_SIZE + 4 + 4 + stack.size * 4;
+		var count = 0;
+
+		for (int slot = 0; slot < values.length; slot++) {
+			if ((defined[slot >>> 6] & (1L << slot)) != 0) {
+				size += 2 + symbols.encodedName(slot).length + 4;
+				count++;
+			}
+		}
+
+		var line = stack.lines[index];
+		var buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC)
+				.putShort(VERSION)
+				.putLong(programHash)
+				.putLong(ctx.steps)
+				.putInt(index)
+				.putInt(line)
+				.putInt(count);
+
+		for (int slot = 0; slot < values.length; slot++) {
+			if ((defined[slot >>> 6] & (1L << slot)) != 0) {
+				var name = symbols.encodedName(slot);
+				buffer.putShort((short) name.length).put(name).putInt(values[slot]);
+			}
+		}
+
+		buffer.putInt(stack.size);
+		buffer.asIntBuffer().put(stack.data, 0, stack.size);
+		return new Snapshot(buffer.array(), programHash, ctx.steps, line);
+	}
+
+	/**
+	 * Read a snapshot written by {@link #toByteArray()} or {@link #writeTo(OutputStream)}. Only the header is
+	 * checked here, the rest when the snapshot is resumed.
+	 *
+	 * @throws IllegalArgumentException If the data is not a snapshot of a supported version
+	 */
+	static Snapshot of(byte[] data) {
+		var buffer = ByteBuffer.wrap(data);
+
+		if (data.length < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IllegalArgumentException("Not a BASIC snapshot");
+		}
+
+		var version = buffer.getShort();
+
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported snapshot version " + version);
+		}
+
+		var programHash = buffer.getLong();
+		var steps = buffer.getLong();
+		buffer.getInt();
+		var line = buffer.getInt();
+		return new Snapshot(data.clone(), programHash, steps, line);
+	}
+
+	/**
+	 * Restore the variables, the GOSUB stack and the step count into the given context. The whole snapshot is
+	 * decoded and checked first, so a damaged snapshot leaves the context unchanged.
+	 *
+	 * @param size The number of lines of the program
+	 * @return The program index of the next line
+	 * @throws IllegalArgumentException If the snapshot is damaged
+	 */
+	int restore(ExecutionContext ctx, int size) {
+		var buffer = ByteBuffer.wrap(data, HEADER_SIZE - 8, data.length - HEADER_SIZE + 8);
+		int index;
+		String[] names;
+		int[] values;
+		int[] returns;
+
+		try {
+			index = checkIndex(buffer.getInt(), size);
+			buffer.getInt();
+			var count = buffer.getInt();
+
+			// Every variable takes at least a name length and a value
+			if (count < 0 || count > buffer.remaining() / (2 + 4)) {
+				throw new IllegalArgumentException("Damaged snapshot: invalid number of variables " + count);
+			}
+
+			names = new String[count];
+			values = new int[count];
+
+			for (int i = 0; i < count; i++) {
+				var name = new byte[buffer.getShort() & 0xffff];
+				buffer.get(name);
+				names[i] = new String(name, StandardCharsets.UTF_8);
+				values[i] = buffer.getInt();
+			}
+
+			var depth = buffer.getInt();
+
+			if (depth < 0 || depth > ctx.stack.maxDepth() || depth * 4L != buffer.remaining()) {
+				throw new IllegalArgumentException("Damaged snapshot: invalid GOSUB stack size " + depth);
+			}
+
+			returns = new int[depth];
+
+			for (int i = 0; i < depth; i++) {
+				returns[i] = checkIndex(buffer.getInt(), size);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Damaged snapshot: truncated", e);
+		}
+
+		Arrays.fill(ctx.defined, 0);
+
+		for (int i = 0; i < names.length; i++) {
+			ctx.setVar(ctx.symbols.slot(names[i]), values[i]);
+		}
+
+		var stack = ctx.stack;
+		stack.size = 0;
+
+		for (var address : returns) {
+			stack.push(address);
+		}
+
+		ctx.steps = steps;
+		return index;
+	}
+
+	private static int checkIndex(int index, int size) {
+		// A return address can point directly after the last line
+		if (index < 0 || index > size) {
+			throw new IllegalArgumentException("Damaged snapshot: invalid program index " + index);
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return The snapshot in the binary format
+	 */
+	byte[] toByteArray() {
+		return data.clone();
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(data);
+	}
+
+	/**
+	 * @return The size of the snapshot in bytes
+	 */
+	int size() {
+		return data.length;
+	}
+}
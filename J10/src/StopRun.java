@@ -0,0 +1,2 @@
+class StopRun extends Exception {
+}
@@ -0,0 +1,150 @@
+/**
+ * Specialised instructions for common line sequences, run by the tree walker in place of the parsed
+ * instructions. They behave exactly like the instructions they replace, with fewer virtual calls.
+ * <br>
+ * A superinstruction covering two lines is only ever stored on the first of them, the second line keeps
+ * its own instruction, so jumps into the middle of a fused sequence behave the same as before. Every
+ * line after the first one adds itself to {@link ExecutionContext#steps}, or is left to the tree walker
+ * if {@link ExecutionContext#safepoint(int)} has to be called before it.
+ */
+interface Superinstruction extends Instruction {
+	/**
+	 * @param index       The program index of the instruction
+	 * @param instruction The parsed instruction
+	 * @param next        The parsed instruction on the next line, or null if it is not available
+	 * @return The instruction to run for the given index
+	 */
+	static Instruction fuse(int index, Instruction instruction, Instruction next) {
+		if (instruction instanceof Instruction.Let let && next instanceof Instruction.If if_) {
+			var increment = increment(let);
+
+			if (increment != null) {
+				var calc = (Expression.Calculation) let.value;
+				var variable = (Expression.Variable) (calc.left instanceof Expression.Variable ? calc.left : calc.right);
+				var fused = incrementAndBranch(let.slot, variable.defined, increment, if_, index + 2);
+
+				if (fused != null) {
+					return fused;
+				}
+			}
+		}
+
+		if (instruction instanceof Instruction.If if_) {
+			var res = branch(if_);
+			return res == null ? instruction : res;
+		}
+
+		return instruction;
+	}
+
+	/**
+	 * @return The increment of {@code LET v = v + c}, {@code LET v = c + v} or {@code LET v = v - c}, or
+	 * null if the instruction is not an increment
+	 */
+	private static Integer increment(Instruction.Let let) {
+		if (!(let.value instanceof Expression.Calculation calc)) {
+			return null;
+		}
+
+		var operand = calc.operand;
+
+		if (calc.left instanceof Expression.Variable v && v.slot == let.slot && calc.right instanceof Expression.Int c) {
+			return switch (operand) {
+				case Add -> c.value;
+				case Sub -> -c.value;
+				default -> null;
+			};
+		} else if (calc.left instanceof Expression.Int c && calc.right instanceof Expression.Variable v && v.slot == let.slot && operand == Expression.Calculation.Operand.Add) {
+			return c.value;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param defined Whether the variable is always set before the increment, see {@link DefUseAnalysis}
+	 */
+	private static Instruction incrementAndBranch(int slot, boolean defined, int increment, Instruction.If if_, int fallthrough) {
+		var cmp = if_.cmp;
+		var left = if_.left;
+		var right = if_.right;
+
+		if (!(left instanceof Expression.Variable v) || v.slot != slot) {
+			if (!(right instanceof Expression.Variable v) || v.slot != slot) {
+				return null;
+			}
+
+			cmp = cmp.flip();
+			right = left;
+		}
+
+		return switch (right) {
+			case Expression.Int c -> new IncrementAndCompareConst(slot, defined, increment, cmp, c.value, if_.destination, fallthrough);
+			case Expression.Variable v -> new IncrementAndCompareVar(slot, defined, increment, cmp, v.slot, v.defined, if_.destination, fallthrough);
+			default -> null;
+		};
+	}
+
+	private static Instruction branch(Instruction.If if_) {
+		return switch (if_.left) {
+			case Expression.Variable l when if_.right instanceof Expression.Int r -> new CompareConst(l.slot, l.defined, if_.cmp, r.value, if_.destination);
+			case Expression.Int l when if_.right instanceof Expression.Variable r -> new CompareConst(r.slot, r.defined, if_.cmp.flip(), l.value, if_.destination);
+			case Expression.Variable l when if_.right instanceof Expression.Variable r -> new CompareVars(l.slot, l.defined, if_.cmp, r.slot, r.defined, if_.destination);
+			default -> null;
+		};
+	}
+
+	/**
+	 * {@code IF v cmp c GOTO n}
+	 */
+	record CompareConst(int slot, boolean defined, Comparison cmp, int value, int destination) implements Superinstruction {
+		public int run(ExecutionContext ctx) {
+			return cmp.test(ctx.getVar(slot, defined), value) ? destination : Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * {@code IF v cmp w GOTO n}
+	 */
+	record CompareVars(int left, boolean leftDefined, Comparison cmp, int right, boolean rightDefined, int destination) implements Superinstruction {
+		public int run(ExecutionContext ctx) {
+			return cmp.test(ctx.getVar(left, leftDefined), ctx.getVar(right, rightDefined)) ? destination : Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * {@code LET v = v + i} followed by {@code IF v cmp c GOTO n}
+	 */
+	record IncrementAndCompareConst(int slot, boolean defined, int increment, Comparison cmp, int value, int destination, int fallthrough) implements Superinstruction {
+		public int run(ExecutionContext ctx) {
+			var v = ctx.getVar(slot, defined) + increment;
+			ctx.setVar(slot, v);
+
+			if (ctx.steps >= ctx.nextCheck) {
+				// Let the tree walker check the limits before running the IF on its own
+				return Integer.MAX_VALUE;
+			}
+
+			ctx.steps++;
+			return cmp.test(v, value) ? destination : fallthrough;
+		}
+	}
+
+	/**
+	 * {@code LET v = v + i} followed by {@code IF v cmp w GOTO n}
+	 */
+	record IncrementAndCompareVar(int slot, boolean defined, int increment, Comparison cmp, int other, boolean otherDefined, int destination, int fallthrough) implements Superinstruction {
+		public int run(ExecutionContext ctx) {
+			var v = ctx.getVar(slot, defined) + increment;
+			ctx.setVar(slot, v);
+
+			if (ctx.steps >= ctx.nextCheck) {
+				// Let the tree walker check the limits before running the IF on its own
+				return Integer.MAX_VALUE;
+			}
+
+			ctx.steps++;
+			return cmp.test(v, ctx.getVar(other, otherDefined)) ? destination : fallthrough;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assigns every variable name a slot index in {@link ExecutionContext}
+ */
+class SymbolTable {
+	private final HashMap<String, Integer> slots = new HashMap<>(32);
+	private final ArrayList<String> names = new ArrayList<>(32);
+	private final ArrayList<byte[]> encodedNames = new ArrayList<>(32);
+
+	synchronized int slot(String name) {
+		var slot = slots.get(name);
+
+		if (slot == null) {
+			slot = names.size();
+			slots.put(name, slot);
+			names.add(name);
+			encodedNames.add(name.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return slot;
+	}
+
+	synchronized String name(int slot) {
+		return names.get(slot);
+	}
+
+	/**
+	 * @return The name of the slot in UTF-8, the returned array must not be modified
+	 */
+	synchronized byte[] encodedName(int slot) {
+		return encodedNames.get(slot);
+	}
+
+	synchronized int size() {
+		return names.size();
+	}
+}
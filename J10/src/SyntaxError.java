@@ -0,0 +1,9 @@
+class SyntaxError extends RuntimeException {
+	SyntaxError(String line) {
+		super("BASIC syntax error in '" + line + "'");
+	}
+
+	SyntaxError(String line, String context) {
+		super("BASIC syntax error in '" + line + "'\nCaused by: " + context);
+	}
+}
@@ -2,6 +2,19 @@ import java.io.BufferedReader;
 import java.util.*;
 import java.util.regex.Pattern;
 
+class PrecompiledRegexes {
+	final static Pattern NEWLINE = Pattern.compile("(\r?\n)+");
+	final static Pattern LINE = Pattern.compile("(?<index>\\d+) (?<inst>.+)");
+	final static Pattern INSTRUCTION = Pattern.compile("^(?<inst>\\p{Alpha}+)(?<rest>.*?)$");
+	final static Pattern LET = Pattern.compile("^(?<name>\\p{Alpha}+) = (?<expr>.+)$");
+	final static Pattern IF = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<cmp>[=<>]) (?<right>\\p{Alpha}+|-?\\d+) GOTO (?<dest>\\d+)$");
+	final static Pattern INPUT = Pattern.compile("^(?<name>\\p{Alpha}+)$");
+	final static Pattern VARIABLE = Pattern.compile("^(?<name>\\p{Alpha}+)$");
+	final static Pattern STR = Pattern.compile("^(?<quot>[\"'])(?<content>.*?)\\k<quot>$");
+	final static Pattern INT = Pattern.compile("^(?<value>-?\\d+)$");
+	final static Pattern CALCULATION = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<op>[-+/*]) (?<right>\\p{Alpha}+|-?\\d+)$");
+}
+
 enum Comparison {
 	Eq {
 		@Override
@@ -25,7 +38,7 @@ enum Comparison {
 
 interface Instruction {
 	static Instruction parse(String line) {
-		var instRegex = Pattern.compile("^(?<inst>\\p{Alpha}+)(?<rest>.*?)$");
+		var instRegex = PrecompiledRegexes.INSTRUCTION;
 
 		try {
 			var matcher = instRegex.matcher(line);
@@ -70,6 +83,13 @@ interface Instruction {
 			Map<String, Integer> vars
 	) throws StopRun;
 
+	/**
+	 * @return The line number this instruction can jump to, or 0 if it never jumps
+	 */
+	default int destination() {
+		return 0;
+	}
+
 	class Let implements Instruction {
 		String name;
 		Expression value;
@@ -77,7 +97,7 @@ interface Instruction {
 		static Instruction parse(String line) {
 			var res = new Let();
 
-			var instRegex = Pattern.compile("^(?<name>\\p{Alpha}+) = (?<expr>.+)$");
+			var instRegex = PrecompiledRegexes.LET;
 
 			try {
 				var matcher = instRegex.matcher(line);
@@ -149,6 +169,11 @@ interface Instruction {
 		) {
 			return destination;
 		}
+
+		@Override
+		public int destination() {
+			return destination;
+		}
 	}
 
 	class End implements Instruction {
@@ -178,8 +203,7 @@ interface Instruction {
 		static Instruction parse(String line) {
 			var res = new If();
 
-			var instRegex = Pattern.compile(
-					"^(?<left>\\p{Alpha}+|-?\\d+) (?<cmp>[=<>]) (?<right>\\p{Alpha}+|-?\\d+) GOTO (?<dest>\\d+)$");
+			var instRegex = PrecompiledRegexes.IF;
 
 			try {
 				var matcher = instRegex.matcher(line);
@@ -224,6 +248,11 @@ interface Instruction {
 				return 0;
 			}
 		}
+
+		@Override
+		public int destination() {
+			return destination;
+		}
 	}
 
 	class Input implements Instruction {
@@ -232,7 +261,7 @@ interface Instruction {
 		static Instruction parse(String line) {
 			var res = new Input();
 
-			var instRegex = Pattern.compile("^(?<name>\\p{Alpha}+)$");
+			var instRegex = PrecompiledRegexes.INPUT;
 
 			try {
 				var matcher = instRegex.matcher(line);
@@ -259,13 +288,13 @@ interface Instruction {
 
 interface Expression {
 	static Expression parse(String expr) {
-		if (expr.matches("^\\p{Alpha}+$")) {
+		if (PrecompiledRegexes.VARIABLE.matcher(expr).matches()) {
 			return Variable.parse(expr);
-		} else if (expr.matches("^(?<quot>[\"']).*?\\k<quot>$")) {
+		} else if (PrecompiledRegexes.STR.matcher(expr).matches()) {
 			return Str.parse(expr);
-		} else if (expr.matches("^-?\\d+$")) {
+		} else if (PrecompiledRegexes.INT.matcher(expr).matches()) {
 			return Int.parse(expr);
-		} else if (expr.matches("^(\\p{Alpha}+|-?\\d+) [-+/*] (\\p{Alpha}+|-?\\d+)$")) {
+		} else if (PrecompiledRegexes.CALCULATION.matcher(expr).matches()) {
 			return Calculation.parse(expr);
 		}
 
@@ -280,7 +309,7 @@ interface Expression {
 		String name;
 
 		static Variable parse(String expr) {
-			var pattern = Pattern.compile("^(?<name>\\p{Alpha}+)$");
+			var pattern = PrecompiledRegexes.VARIABLE;
 
 			try {
 				var matcher = pattern.matcher(expr);
@@ -312,7 +341,7 @@ interface Expression {
 		String content;
 
 		static Str parse(String expr) {
-			var pattern = Pattern.compile("^(?<quot>[\"'])(?<content>.*?)\\k<quot>$");
+			var pattern = PrecompiledRegexes.STR;
 
 			try {
 				var matcher = pattern.matcher(expr);
@@ -343,7 +372,7 @@ interface Expression {
 		int value;
 
 		static Int parse(String expr) {
-			var pattern = Pattern.compile("^(?<value>-?\\d+)$");
+			var pattern = PrecompiledRegexes.INT;
 
 			try {
 				var matcher = pattern.matcher(expr);
@@ -372,7 +401,7 @@ interface Expression {
 		Expression right;
 
 		static Calculation parse(String expr) {
-			var pattern = Pattern.compile("^(?<left>\\p{Alpha}+|-?\\d+) (?<op>[-+/*]) (?<right>\\p{Alpha}+|-?\\d+)$");
+			var pattern = PrecompiledRegexes.CALCULATION;
 
 			try {
 				var matcher = pattern.matcher(expr);
@@ -452,6 +481,13 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 	int pc = 1;
 	SortedMap<Integer, Instruction> program = new TreeMap<>();
 	Map<String, Integer> vars = new HashMap<>();
+	/**
+	 * The instructions of {@link #program} in line order, with the line number and the index of the jump
+	 * destination of every one of them, or -1 if the destination does not exist
+	 */
+	Instruction[] instructions = new Instruction[0];
+	int[] lines = new int[0];
+	int[] destinations = new int[0];
 
 	/**
 	 * Metoda ustawia BufferedReader, który pozwala na odczyt kodu źródłowego
@@ -461,8 +497,8 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 	 */
 	@Override
 	public void programCodeReader(BufferedReader reader) {
-		var scanner = new Scanner(reader).useDelimiter("(\r?\n)+");
-		var lineRegex = Pattern.compile("(?<index>\\d+) (?<inst>.+)");
+		var scanner = new Scanner(reader).useDelimiter(PrecompiledRegexes.NEWLINE);
+		var lineRegex = PrecompiledRegexes.LINE;
 
 		while (scanner.hasNext(lineRegex)) {
 			var line = lineRegex.matcher(scanner.next(lineRegex));
@@ -477,6 +513,22 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 		if (scanner.hasNext(".+")) {
 			throw new SyntaxError(scanner.next(".+"));
 		}
+
+		link();
+	}
+
+	/**
+	 * Lay out the program in {@link #instructions} and resolve the jump destinations
+	 */
+	void link() {
+		instructions = program.values().toArray(new Instruction[0]);
+		lines = program.keySet().stream().mapToInt(Integer::intValue).toArray();
+		destinations = new int[lines.length];
+
+		for (int i = 0; i < instructions.length; i++) {
+			var destination = instructions[i].destination();
+			destinations[i] = destination == 0 ? -1 : Math.max(Arrays.binarySearch(lines, destination), -1);
+		}
 	}
 
 	/**
@@ -507,31 +559,31 @@ public class ProgrammableCalculator implements ProgrammableCalculatorInterface {
 	@Override
 	public void run(int line) {
 		pc = line;
+		var index = Arrays.binarySearch(lines, line);
 
-		if (!program.containsKey(pc) || line == 0) {
+		if (index < 0 || line == 0) {
 			throw new RuntimeException("Invalid start line " + pc);
 		}
 
-		while (pc <= program.lastKey()) {
-			var instruction = program.get(pc);
-
-			try {
-				var next = instruction.run(stdin, stdout, vars);
+		try {
+			while (index < instructions.length) {
+				var next = instructions[index].run(stdin, stdout, vars);
 
 				if (next == 0) {
-					do {
-						pc++;
-					} while (!program.containsKey(pc) && pc <= program.lastKey());
+					index++;
 				} else {
-					if (!program.containsKey(next)) {
-						throw new GotoError(pc, next);
+					if (destinations[index] < 0) {
+						throw new GotoError(lines[index], next);
 					}
 
-					pc = next;
+					index = destinations[index];
 				}
-			} catch (StopRun stop) {
-				return;
 			}
+		} catch (StopRun stop) {
+			// END
+		} finally {
+			// The line which ended the run, or the one after the last line
+			pc = index < lines.length ? lines[index] : lines[lines.length - 1] + 1;
 		}
 	}
 }
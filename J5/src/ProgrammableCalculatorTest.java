@@ -249,4 +249,41 @@ class ProgrammableCalculatorTest {
 
 		assert stdout.lines.equals(List.of("a nie jest < od b"));
 	}
+
+	@org.junit.jupiter.api.Test
+	void sparse() {
+		String program = """
+				10 LET i = 0
+				1000 LET i = i + 1
+				100000 IF i < 3 GOTO 1000
+				10000000 PRINT i
+				10000001 IF i > 5 GOTO 20
+				10000002 GOTO 30
+				""";
+
+		var calc = new ProgrammableCalculator();
+		var stdout = new StringLinePrinter();
+		calc.setStdin(new StringLineReader(""));
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader(program)));
+
+		try {
+			calc.run(10);
+			assert false;
+		} catch (RuntimeException e) {
+			assert e.getMessage().equals("GOTO error in line 10000002: no such destination 30");
+		}
+
+		assert stdout.lines.equals(List.of("3"));
+		assert calc.pc == 10000002 : calc.pc;
+
+		// The run ends at END, or after the last line
+		calc = new ProgrammableCalculator();
+		calc.setStdout(stdout);
+		calc.programCodeReader(new BufferedReader(new StringReader("20 END\n30 PRINT 1\n")));
+		calc.run(20);
+		assert calc.pc == 20 : calc.pc;
+		calc.run(30);
+		assert calc.pc == 31 : calc.pc;
+	}
 }